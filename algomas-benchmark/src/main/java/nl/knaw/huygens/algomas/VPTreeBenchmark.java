@@ -23,10 +23,14 @@ package nl.knaw.huygens.algomas;
  */
 
 import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import nl.knaw.huygens.algomas.spatial.CachingMetric;
+import nl.knaw.huygens.algomas.spatial.NeighborBuffer;
 import nl.knaw.huygens.algomas.spatial.VPTree;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 
 import java.util.ArrayList;
@@ -95,6 +99,45 @@ public class VPTreeBenchmark {
                   .average().getAsDouble();
   }
 
+  @Benchmark
+  public static double neighbors3Batch() {
+    return tree.batchNearestNeighbors(3, QUERIES).stream()
+               .flatMapToDouble(l -> l.stream().mapToDouble(e -> e.distance))
+               .average().getAsDouble();
+  }
+
+  // Each benchmark thread reuses its own buffer.
+  @State(Scope.Thread)
+  public static class Buffer {
+    final NeighborBuffer buffer = new NeighborBuffer();
+  }
+
+  @Benchmark
+  public static double neighbors3Buffer(Buffer state) {
+    NeighborBuffer buffer = state.buffer;
+    double total = 0;
+    int n = 0;
+    for (String q : QUERIES) {
+      tree.nearestNeighbors(3, q, buffer);
+      for (int i = 0; i < buffer.size(); i++) {
+        total += buffer.distance(i);
+      }
+      n += buffer.size();
+    }
+    return total / n;
+  }
+
+  private static final VPTree<String> cachedTree =
+    new VPTree<>(new CachingMetric<String>(Levenshtein::distance, 1 << 16), TO_INDEX);
+
+  // Repeated queries against a tree with a CachingMetric.
+  @Benchmark
+  public static double neighbors3Cached() {
+    return QUERIES.stream().flatMapToDouble(q ->
+      cachedTree.nearestNeighbors(3, q).mapToDouble(e -> e.distance))
+                  .average().getAsDouble();
+  }
+
   @Benchmark
   public static double neighbors3Brute() {
     return QUERIES
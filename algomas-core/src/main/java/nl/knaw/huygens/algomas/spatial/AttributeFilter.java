@@ -0,0 +1,131 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+/**
+ * Filter on the attributes of points in a {@link VPTree}, for filtered search.
+ * <p>
+ * A VPTree can be built with attributes for its points: a set of categories,
+ * encoded as a bitmask, and a numeric key (see
+ * {@link VPTree.Builder#categories} and {@link VPTree.Builder#key}). It then
+ * summarizes the attributes of every subtree, so that filtered searches can
+ * skip subtrees that hold no matching points, and test points against the
+ * filter before computing their distance to the query point.
+ * <p>
+ * A point matches a filter if it has any of the filter's categories and its
+ * key lies in the filter's key range. A filter that does not restrict the
+ * categories also matches points that have none. AttributeFilters are
+ * immutable.
+ */
+public final class AttributeFilter {
+  /**
+   * Filter that matches all points.
+   */
+  public static final AttributeFilter ALL =
+    new AttributeFilter(-1L, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+  private final long categories;
+  private final double keyMin;
+  private final double keyMax;
+
+  private AttributeFilter(long categories, double keyMin, double keyMax) {
+    this.categories = categories;
+    this.keyMin = keyMin;
+    this.keyMax = keyMax;
+  }
+
+  /**
+   * Returns a filter that matches points with any of the categories in mask.
+   */
+  public static AttributeFilter categories(long mask) {
+    return ALL.withCategories(mask);
+  }
+
+  /**
+   * Returns a filter that matches points in the given category, between 0 and 63.
+   */
+  public static AttributeFilter category(int category) {
+    if (category < 0 || category >= Long.SIZE) {
+      throw new IllegalArgumentException("category must be in [0, 64), got " + category);
+    }
+    return categories(1L << category);
+  }
+
+  /**
+   * Returns a filter that matches points with min <= key <= max.
+   */
+  public static AttributeFilter keyRange(double min, double max) {
+    return ALL.withKeyRange(min, max);
+  }
+
+  /**
+   * Returns a copy of this filter that matches points with any of the
+   * categories in mask.
+   */
+  public AttributeFilter withCategories(long mask) {
+    return new AttributeFilter(mask, keyMin, keyMax);
+  }
+
+  /**
+   * Returns a copy of this filter that matches points with min <= key <= max.
+   */
+  public AttributeFilter withKeyRange(double min, double max) {
+    if (!(min <= max)) {
+      throw new IllegalArgumentException(String.format("invalid key range [%g, %g]", min, max));
+    }
+    return new AttributeFilter(categories, min, max);
+  }
+
+  public long getCategories() {
+    return categories;
+  }
+
+  public double getKeyMin() {
+    return keyMin;
+  }
+
+  public double getKeyMax() {
+    return keyMax;
+  }
+
+  boolean filtersCategories() {
+    return categories != -1L;
+  }
+
+  boolean filtersKeys() {
+    return keyMin != Double.NEGATIVE_INFINITY || keyMax != Double.POSITIVE_INFINITY;
+  }
+
+  // Reports whether a point with the given attributes matches, or, given the
+  // union of the categories and the key range of a set of points, whether any
+  // of them may match.
+  boolean matches(long mask, double min, double max) {
+    return (categories == -1L || (mask & categories) != 0) && max >= keyMin && min <= keyMax;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("categories %s, key in [%g, %g]", Long.toHexString(categories), keyMin, keyMax);
+  }
+}
@@ -23,22 +23,16 @@ package nl.knaw.huygens.algomas.spatial;
  */
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.SortedMap;
 import java.util.Spliterator;
 import java.util.Spliterators;
-import java.util.TreeMap;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static java.util.Collections.reverseOrder;
-import static java.util.Comparator.comparing;
-
 /**
  * A BK-tree is a spatial index that speeds up neighbor queries in discrete metric spaces,
  * such as the space of strings with Levenshtein distance.
@@ -51,18 +45,58 @@ import static java.util.Comparator.comparing;
 public class BKTree<T> implements Collection<T> {
   private static class Node<T> {
     final T key;
-    TreeMap<Integer, Node<T>> sub;
+    // Number of points in the subtree rooted at this node.
+    int size = 1;
+    // Children, sorted by their distance to key. The first nChildren
+    // slots of the arrays are in use; both are null for leaves.
+    int[] childDist;
+    Node<T>[] children;
+    int nChildren;
 
     Node(T key) {
       this.key = key;
     }
+
+    // Index of the first child at distance >= d from key.
+    int lowerBound(int d) {
+      int lo = 0;
+      int hi = nChildren;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (childDist[mid] < d) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    void insertChild(int i, int d, Node<T> child) {
+      if (children == null) {
+        childDist = new int[2];
+        children = newNodes(2);
+      } else if (nChildren == children.length) {
+        childDist = Arrays.copyOf(childDist, 2 * nChildren);
+        children = Arrays.copyOf(children, 2 * nChildren);
+      }
+      System.arraycopy(childDist, i, childDist, i + 1, nChildren - i);
+      System.arraycopy(children, i, children, i + 1, nChildren - i);
+      childDist[i] = d;
+      children[i] = child;
+      nChildren++;
+    }
   }
 
   private final boolean allowDuplicates;
   private int nelems = 0;
   private Node<T> root = null;
+  // Scratch space for add: the nodes on the path to the new node.
+  private Node<T>[] addPath = newNodes(16);
 
   private IntMetric<T> metric;
+  // metric, if it is a BoundedIntMetric.
+  private final BoundedIntMetric<T> bounded;
 
   public BKTree(IntMetric<T> metric) {
     this(metric, true);
@@ -76,9 +110,11 @@ public class BKTree<T> implements Collection<T> {
     this(metric, true, points);
   }
 
+  @SuppressWarnings("unchecked")
   public BKTree(IntMetric<T> metric, boolean allowDuplicates, Iterable<T> points) {
     this.allowDuplicates = allowDuplicates;
     this.metric = metric;
+    this.bounded = metric instanceof BoundedIntMetric ? (BoundedIntMetric<T>) metric : null;
     points.forEach(this::add);
   }
 
@@ -94,25 +130,40 @@ public class BKTree<T> implements Collection<T> {
       return true;
     }
 
-    for (Node<T> node = root; ; ) {
-      int d = metric.distance(key, node.key);
-      if (d == 0 && !allowDuplicates) {
-        return false;
-      }
-      if (node.sub == null) {
-        node.sub = new TreeMap<>();
+    // Clear the path on every exit, so that addPath does not hold on to nodes.
+    int depth = 0;
+    try {
+      for (Node<T> node = root; ; ) {
+        int d = metric.distance(key, node.key);
+        if (d == 0 && !allowDuplicates) {
+          return false;
+        }
+        if (depth == addPath.length) {
+          addPath = Arrays.copyOf(addPath, 2 * depth);
+        }
+        addPath[depth++] = node;
+        int i = node.lowerBound(d);
+        if (i == node.nChildren || node.childDist[i] != d) {
+          node.insertChild(i, d, new Node<>(key));
+          break;
+        }
+        node = node.children[i];
       }
-      Node<T> subd = node.sub.get(d);
-      if (subd == null) {
-        node.sub.put(d, new Node<>(key));
-        break;
+      for (int i = 0; i < depth; i++) {
+        addPath[i].size++;
       }
-      node = subd;
+    } finally {
+      Arrays.fill(addPath, 0, depth, null);
     }
     nelems++;
     return true;
   }
 
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <T> Node<T>[] newNodes(int n) {
+    return new Node[n];
+  }
+
 
   @Override
   public boolean addAll(Collection<? extends T> c) {
@@ -128,7 +179,7 @@ public class BKTree<T> implements Collection<T> {
   @Override
   public boolean contains(Object o) {
     //noinspection unchecked
-    return withinRadius((T) o, 0).findAny().isPresent();
+    return anyWithinRadius((T) o, 0);
   }
 
   @Override
@@ -171,9 +222,9 @@ public class BKTree<T> implements Collection<T> {
     private int nChildren, size;
 
     public SpliteratorImpl(Node<T> node, int size) {
-      super(node.sub.isEmpty() ? 1 : size, SIZED | SUBSIZED);
+      super(node.nChildren == 0 ? 1 : size, SIZED | SUBSIZED);
       nodes.add(node);
-      nChildren = node.sub.size();
+      nChildren = node.nChildren;
     }
 
     @Override
@@ -183,8 +234,8 @@ public class BKTree<T> implements Collection<T> {
       }
       Node<T> top = nodes.removeFirst();
       action.accept(top.key);
-      if (top.sub != null) {
-        nodes.addAll(top.sub.values());
+      for (int i = 0; i < top.nChildren; i++) {
+        nodes.addLast(top.children[i]);
       }
       size--;
       return true;
@@ -207,6 +258,9 @@ public class BKTree<T> implements Collection<T> {
 
   @Override
   public Spliterator<T> spliterator() {
+    if (root == null) {
+      return Spliterators.emptySpliterator();
+    }
     return new SpliteratorImpl<>(root, nelems);
   }
 
@@ -255,39 +309,116 @@ public class BKTree<T> implements Collection<T> {
    * @param point  Query point.
    */
   public final Stream<Entry<T>> nearestNeighbors(int k, int radius, T point) {
-    if (root == null) {
-      return Stream.empty();
+    IntNeighborBuffer<T> nearest = new IntNeighborBuffer<>(Math.max(0, Math.min(k, nelems)));
+    nearestNeighbors(k, radius, point, nearest);
+    return IntStream.range(0, nearest.size())
+                    .mapToObj(i -> new Entry<>(nearest.point(i), nearest.distance(i)));
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   * <p>
+   * Stores the neighbors and their distances from the query point in result,
+   * sorted by increasing distance. Once result has grown to hold k neighbors,
+   * this method does not allocate memory.
+   *
+   * @param k      Number of neighbors to collect.
+   * @param point  Query point.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public final void nearestNeighbors(int k, T point, IntNeighborBuffer<T> result) {
+    nearestNeighbors(k, Integer.MAX_VALUE, point, result);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius.
+   * <p>
+   * Stores the neighbors and their distances from the query point in result,
+   * sorted by increasing distance. Once result has grown to hold k neighbors,
+   * this method does not allocate memory.
+   *
+   * @param k      Number of neighbors to collect.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @param point  Query point.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public final void nearestNeighbors(int k, int radius, T point, IntNeighborBuffer<T> result) {
+    if (result.getStats() != null) {
+      instrumentedNearestNeighbors(k, radius, point, result);
+      return;
+    }
+    result.reset(k);
+    if (root != null) {
+      nearestNeighbors(root, radius, point, result);
     }
-    Comparator<Entry<T>> byDistance = comparing(e -> e.distance);
-    PriorityQueue<Entry<T>> nearest = new PriorityQueue<>(k + 1, reverseOrder(byDistance));
-    nearestNeighbors(root, k, radius, point, nearest);
-    return nearest.stream();
+    result.sort();
   }
 
-  private int nearestNeighbors(Node<T> node, int k, int radius, T point, PriorityQueue<Entry<T>> nearest) {
-    int d = metric.distance(point, node.key);
-    if (d <= radius) {
-      nearest.offer(new Entry<>(node.key, d));
-      if (nearest.size() > k) {
-        nearest.poll();
-      }
-      if (nearest.size() == k) {
-        radius = nearest.peek().distance;
+  private void instrumentedNearestNeighbors(int k, int radius, T point, IntNeighborBuffer<T> result) {
+    long start = System.nanoTime();
+    SearchStats.Counters counters = new SearchStats.Counters();
+    result.reset(k);
+    if (root != null) {
+      nearestNeighbors(root, radius, point, result, counters);
+    }
+    result.sort();
+    result.recordStats(counters, System.nanoTime() - start);
+  }
+
+  private int nearestNeighbors(Node<T> node, int radius, T point, IntNeighborBuffer<T> nearest) {
+    int d = distance(point, node, radius);
+    if (d <= radius && nearest.offer(node.key, d) && nearest.isFull()) {
+      radius = nearest.maxDistance();
+    }
+
+    int lower = Math.max(d - radius, 0);
+    for (int i = node.lowerBound(lower); i < node.nChildren; i++) {
+      int upper = (int) Math.min((long) d + radius, Integer.MAX_VALUE);
+      if (node.childDist[i] > upper) {
+        break;
       }
+
+      radius = nearestNeighbors(node.children[i], radius, point, nearest);
     }
+    return radius;
+  }
 
-    if (node.sub != null) {
-      int lower = Math.max(d - radius, 0);
-      SortedMap<Integer, Node<T>> sub = node.sub.tailMap(lower);
+  // Distance from point to node's key, where only distances up to the
+  // search radius plus the largest child edge matter: beyond that, no child
+  // can hold a point within radius.
+  private int distance(T point, Node<T> node, int radius) {
+    if (bounded == null) {
+      return metric.distance(point, node.key);
+    }
+    long threshold = (long) radius + (node.nChildren == 0 ? 0 : node.childDist[node.nChildren - 1]);
+    return bounded.distance(point, node.key, (int) Math.min(threshold, Integer.MAX_VALUE));
+  }
 
-      for (Map.Entry<Integer, Node<T>> child : sub.entrySet()) {
-        int upper = (int) Math.min((long) d + radius, Integer.MAX_VALUE);
-        if (child.getKey() > upper) {
-          break;
-        }
+  // Version of nearestNeighbors that counts its work.
+  private int nearestNeighbors(Node<T> node, int radius, T point, IntNeighborBuffer<T> nearest,
+                               SearchStats.Counters counters) {
+    counters.nodesVisited++;
+    counters.distanceCalls++;
+    int d = distance(point, node, radius);
+    if (d <= radius && nearest.offer(node.key, d)) {
+      counters.heapUpdates++;
+      if (nearest.isFull()) {
+        radius = nearest.maxDistance();
+      }
+    }
 
-        radius = nearestNeighbors(child.getValue(), k, radius, point, nearest);
+    int lower = Math.max(d - radius, 0);
+    int i = node.lowerBound(lower);
+    counters.pruned += i;
+    for (; i < node.nChildren; i++) {
+      int upper = (int) Math.min((long) d + radius, Integer.MAX_VALUE);
+      if (node.childDist[i] > upper) {
+        counters.pruned += node.nChildren - i;
+        break;
       }
+
+      radius = nearestNeighbors(node.children[i], radius, point, nearest, counters);
     }
     return radius;
   }
@@ -309,7 +440,7 @@ public class BKTree<T> implements Collection<T> {
     if (node == null) {
       return Stream.empty();
     }
-    int d = metric.distance(point, node.key);
+    int d = distance(point, node, radius);
     Stream<Entry<T>> result;
     if (d <= radius) {
       result = Stream.of(new Entry<>(node.key, d));
@@ -317,17 +448,73 @@ public class BKTree<T> implements Collection<T> {
       result = Stream.empty();
     }
 
-    if (node.sub != null) {
+    if (node.nChildren > 0) {
       int lower = Math.max(d - radius, 0);
       int upper = (int) Math.min((long) d + radius + 1, Integer.MAX_VALUE);
       result = Stream.concat(result,
-        node.sub.subMap(lower, upper)
-                .values().stream()
-                .flatMap(sub -> withinRadius(point, radius, sub)));
+        Arrays.stream(node.children, node.lowerBound(lower), node.lowerBound(upper))
+              .flatMap(sub -> withinRadius(point, radius, sub)));
     }
     return result;
   }
 
+  /**
+   * Counts the points within the given radius of the given point.
+   * <p>
+   * Unlike {@link #withinRadius(Object, int)}, this method does not collect
+   * the points. All points below the child of a node at distance e lie at
+   * distance e from that node, so a subtree that the triangle inequality
+   * places entirely within the radius is counted without being visited.
+   *
+   * @param point  Query point.
+   * @param radius Points must be at distance <= radius from the query point.
+   */
+  public int countWithinRadius(T point, int radius) {
+    return root == null ? 0 : count(root, point, radius);
+  }
+
+  private int count(Node<T> node, T point, int radius) {
+    int d = distance(point, node, radius);
+    int count = d <= radius ? 1 : 0;
+    int lower = Math.max(d - radius, 0);
+    long upper = (long) d + radius;
+    for (int i = node.lowerBound(lower); i < node.nChildren && node.childDist[i] <= upper; i++) {
+      if ((long) d + node.childDist[i] <= radius) {
+        count += node.children[i].size;
+      } else {
+        count += count(node.children[i], point, radius);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reports whether any point lies within the given radius of the given point.
+   * <p>
+   * The search stops at the first such point.
+   *
+   * @param point  Query point.
+   * @param radius Maximum distance from the query point.
+   */
+  public boolean anyWithinRadius(T point, int radius) {
+    return root != null && any(root, point, radius);
+  }
+
+  private boolean any(Node<T> node, T point, int radius) {
+    int d = distance(point, node, radius);
+    if (d <= radius) {
+      return true;
+    }
+    int lower = Math.max(d - radius, 0);
+    long upper = (long) d + radius;
+    for (int i = node.lowerBound(lower); i < node.nChildren && node.childDist[i] <= upper; i++) {
+      if (any(node.children[i], point, radius)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   // For debugging.
   void display() {
     display(root, -1, 0);
@@ -341,8 +528,8 @@ public class BKTree<T> implements Collection<T> {
       System.out.printf("%d ", dist);
     }
     System.out.println(node.key);
-    if (node.sub != null) {
-      node.sub.forEach((d, n) -> display(n, d, indent + 4));
+    for (int i = 0; i < node.nChildren; i++) {
+      display(node.children[i], node.childDist[i], indent + 4);
     }
   }
 }
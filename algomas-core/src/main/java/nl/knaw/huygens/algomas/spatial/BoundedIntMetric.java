@@ -0,0 +1,60 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+
+/**
+ * An integer metric that can stop computing a distance once it is known to
+ * exceed a threshold.
+ * <p>
+ * This is the {@link BKTree} counterpart of {@link BoundedMetric}.
+ */
+@FunctionalInterface
+public interface BoundedIntMetric<T> extends IntMetric<T> {
+  /**
+   * Returns distance(a, b) if that is at most threshold, otherwise any value
+   * greater than threshold.
+   */
+  int distance(T a, T b, int threshold);
+
+  @Override
+  default int distance(T a, T b) {
+    return distance(a, b, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Levenshtein distance, as a bounded metric.
+   *
+   * @see Levenshtein#boundedDistance(String, String, int)
+   */
+  static BoundedIntMetric<String> levenshtein() {
+    return (a, b, threshold) -> {
+      if (threshold == Integer.MAX_VALUE) {
+        return Levenshtein.distance(a, b);
+      }
+      // boundedDistance(a, b, t + 1) returns the distance if it is <= t, else t + 1.
+      return Levenshtein.boundedDistance(a, b, threshold + 1);
+    };
+  }
+}
@@ -0,0 +1,63 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+
+/**
+ * A metric that can stop computing a distance once it is known to exceed a
+ * threshold.
+ * <p>
+ * Searches in a {@link VPTree} with a BoundedMetric pass the largest distance
+ * that can still affect the result as the threshold, so that the metric can
+ * abandon computations early. Dynamic programming metrics, such as edit
+ * distances, can save most of their work this way.
+ */
+@FunctionalInterface
+public interface BoundedMetric<T> extends Metric<T> {
+  /**
+   * Returns distance(a, b) if that is at most threshold, otherwise any value
+   * greater than threshold.
+   */
+  double distance(T a, T b, double threshold);
+
+  @Override
+  default double distance(T a, T b) {
+    return distance(a, b, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Levenshtein distance, as a bounded metric.
+   *
+   * @see Levenshtein#boundedDistance(String, String, int)
+   */
+  static BoundedMetric<String> levenshtein() {
+    return (a, b, threshold) -> {
+      if (threshold >= Integer.MAX_VALUE - 1) {
+        return Levenshtein.distance(a, b);
+      }
+      // boundedDistance(a, b, t + 1) returns the distance if it is <= t, else t + 1.
+      return Levenshtein.boundedDistance(a, b, (int) Math.floor(threshold) + 1);
+    };
+  }
+}
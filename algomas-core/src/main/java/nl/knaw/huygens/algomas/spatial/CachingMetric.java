@@ -0,0 +1,127 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+/**
+ * A metric that remembers the distances it has computed.
+ * <p>
+ * CachingMetric wraps an expensive metric and caches its results for
+ * unordered pairs of points, so that distance(a, b) and distance(b, a) share
+ * an entry. The cache is bounded and evicts entries that have not been used
+ * recently (CLOCK algorithm); it is safe for concurrent use and striped, so
+ * that parallel searches mostly do not contend.
+ * <p>
+ * A CachingMetric can be passed wherever the wrapped metric is used, e.g., to
+ * {@link VPTree}. It is a {@link BoundedMetric}: if the wrapped metric is
+ * bounded, early abandoning is preserved and only exact distances are cached.
+ * <p>
+ * Points must have equals and hashCode methods consistent with the metric.
+ *
+ * @param <T> The type of points.
+ * @see CachingIntMetric
+ */
+public final class CachingMetric<T> implements BoundedMetric<T> {
+  private final Metric<T> metric;
+  private final BoundedMetric<T> bounded;
+  private final PairCache cache;
+
+  /**
+   * @param metric   Metric whose results should be cached.
+   * @param capacity Maximum number of distances to cache.
+   */
+  @SuppressWarnings("unchecked")
+  public CachingMetric(Metric<T> metric, int capacity) {
+    this.metric = metric;
+    this.bounded = metric instanceof BoundedMetric ? (BoundedMetric<T>) metric : null;
+    this.cache = new PairCache(capacity);
+  }
+
+  @Override
+  public double distance(T a, T b) {
+    return distance(a, b, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double distance(T a, T b, double threshold) {
+    int h = PairCache.hash(a, b);
+    double d = cache.get(a, b, h);
+    if (!Double.isNaN(d)) {
+      return d;
+    }
+    if (bounded == null) {
+      d = metric.distance(a, b);
+    } else {
+      d = bounded.distance(a, b, threshold);
+      if (d > threshold) {
+        return d; // Lower bound only, don't cache.
+      }
+    }
+    cache.put(a, b, h, d);
+    return d;
+  }
+
+  /**
+   * The wrapped metric.
+   */
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  /**
+   * Number of distance calls answered from the cache.
+   */
+  public long hits() {
+    return cache.hits.sum();
+  }
+
+  /**
+   * Number of distance calls passed on to the wrapped metric.
+   */
+  public long misses() {
+    return cache.misses.sum();
+  }
+
+  /**
+   * Fraction of distance calls answered from the cache, or NaN if there
+   * have been none.
+   */
+  public double hitRate() {
+    long hits = hits();
+    return hits / (double) (hits + misses());
+  }
+
+  /**
+   * Number of distances currently in the cache.
+   */
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * Empties the cache and resets the hit and miss counts.
+   */
+  public void clear() {
+    cache.clear();
+  }
+}
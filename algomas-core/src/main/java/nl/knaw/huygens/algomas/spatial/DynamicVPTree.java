@@ -0,0 +1,334 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A VP-tree that supports insertion and removal of points.
+ * <p>
+ * This class uses the logarithmic method (Bentley and Saxe, Decomposable
+ * searching problems I: Static-to-dynamic transformation, 1980) to turn
+ * the static {@link VPTree} into a dynamic structure. Points are stored in
+ * a small unindexed buffer plus a sequence of VP-trees of doubling capacity.
+ * When the buffer fills up, it is merged with the smallest trees into a new
+ * tree, so that insertion costs amortized O(log² n) distance computations.
+ * Removal marks the point as deleted in the tree that holds it; a tree is
+ * rebuilt when half its points have been deleted.
+ * <p>
+ * Queries search every tree, so they are slower than on a single VPTree of
+ * the same size by a factor of about log(n).
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <T> The type of points.
+ */
+public class DynamicVPTree<T> extends AbstractCollection<T> {
+  // Maximum number of points stored outside the trees.
+  private static final int BUFFER_SIZE = 32;
+
+  private static final class Level<T> {
+    final VPTree<T> tree;
+    final BitSet removed = new BitSet();
+    int nRemoved;
+
+    Level(VPTree<T> tree) {
+      this.tree = tree;
+    }
+
+    int size() {
+      return tree.size() - nRemoved;
+    }
+
+    Stream<T> stream() {
+      return IntStream.range(0, tree.size()).filter(i -> !removed.get(i)).mapToObj(tree::get);
+    }
+  }
+
+  private final Metric<T> metric;
+  private final SplittableRandom rnd;
+  private final List<T> buffer = new ArrayList<>();
+  // levels.get(i) is null or holds at most BUFFER_SIZE << i points.
+  private final List<Level<T>> levels = new ArrayList<>();
+  private int size = 0;
+
+  public DynamicVPTree(Metric<T> metric) {
+    this(metric, new SplittableRandom());
+  }
+
+  public DynamicVPTree(Metric<T> metric, SplittableRandom rnd) {
+    this.metric = metric;
+    this.rnd = rnd;
+  }
+
+  public DynamicVPTree(Metric<T> metric, Iterable<T> points) {
+    this(metric);
+    points.forEach(this::add);
+  }
+
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  @Override
+  public boolean add(T point) {
+    buffer.add(point);
+    size++;
+    if (buffer.size() == BUFFER_SIZE) {
+      carry();
+    }
+    return true;
+  }
+
+  // Merges the buffer and the trees at levels 0, 1, ... into a tree
+  // at the first free level.
+  private void carry() {
+    List<T> points = new ArrayList<>(buffer);
+    buffer.clear();
+    int i = 0;
+    for (; i < levels.size() && levels.get(i) != null; i++) {
+      levels.get(i).stream().forEach(points::add);
+      levels.set(i, null);
+    }
+    if (i == levels.size()) {
+      levels.add(null);
+    }
+    levels.set(i, new Level<>(new VPTree<>(metric, points, rnd.split())));
+  }
+
+  @Override
+  public void clear() {
+    buffer.clear();
+    levels.clear();
+    size = 0;
+  }
+
+  /**
+   * Reports whether this tree contains a point that equals o.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean contains(Object o) {
+    if (buffer.contains(o)) {
+      return true;
+    }
+    NeighborBuffer scratch = new NeighborBuffer();
+    for (Level<T> level : levels) {
+      if (level != null && find(level, (T) o, scratch) != -1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes a single point that equals o from this tree.
+   *
+   * @return Whether such a point was found.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object o) {
+    if (buffer.remove(o)) {
+      size--;
+      return true;
+    }
+
+    NeighborBuffer scratch = new NeighborBuffer();
+    for (int i = 0; i < levels.size(); i++) {
+      Level<T> level = levels.get(i);
+      if (level == null) {
+        continue;
+      }
+      int index = find(level, (T) o, scratch);
+      if (index == -1) {
+        continue;
+      }
+
+      level.removed.set(index);
+      level.nRemoved++;
+      size--;
+      if (level.size() == 0) {
+        levels.set(i, null);
+      } else if (2 * level.nRemoved > level.tree.size()) {
+        levels.set(i, new Level<>(new VPTree<>(metric, level.stream(), rnd.split())));
+      }
+      return true;
+    }
+    return false;
+  }
+
+  // Returns the index of a live point in level that equals point, or -1.
+  private int find(Level<T> level, T point, NeighborBuffer scratch) {
+    level.tree.searchIndices(Integer.MAX_VALUE, 0, point, i -> !level.removed.get(i), scratch);
+    for (int i = 0; i < scratch.size(); i++) {
+      int index = scratch.index(i);
+      if (Objects.equals(point, level.tree.get(index))) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return stream().iterator();
+  }
+
+  /**
+   * A stream containing all points within the tree.
+   */
+  @Override
+  public Stream<T> stream() {
+    return Stream.concat(buffer.stream(),
+      levels.stream().filter(Objects::nonNull).flatMap(Level::stream));
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k     Number of neighbors to collect.
+   * @param point Query point.
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, T point) {
+    return nearestNeighbors(k, Double.POSITIVE_INFINITY, point, x -> true);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, double radius, T point,
+                                                  Predicate<? super T> predicate) {
+    if (k <= 0) {
+      return Stream.empty();
+    }
+
+    // Neighbors found so far. Points are numbered consecutively over the
+    // buffer, then each level's tree from start[l] on.
+    NeighborBuffer nearest = new NeighborBuffer();
+    nearest.reset(k);
+    for (int i = 0; i < buffer.size(); i++) {
+      T p = buffer.get(i);
+      double d = metric.distance(point, p);
+      if (d <= radius && predicate.test(p)) {
+        nearest.offer(i, d);
+      }
+    }
+
+    // Searching the levels in turn, the k'th distance found so far
+    // bounds the search in the remaining levels.
+    int[] start = new int[levels.size()];
+    int offset = buffer.size();
+    NeighborBuffer scratch = new NeighborBuffer();
+    for (int l = 0; l < levels.size(); l++) {
+      Level<T> level = levels.get(l);
+      if (level == null) {
+        continue;
+      }
+      if (nearest.isFull()) {
+        radius = Math.min(radius, nearest.maxDistance());
+      }
+      VPTree<T> tree = level.tree;
+      tree.searchIndices(k, radius, point,
+        i -> !level.removed.get(i) && predicate.test(tree.get(i)), scratch);
+      for (int i = 0; i < scratch.size(); i++) {
+        nearest.offer(offset + scratch.index(i), scratch.distance(i));
+      }
+      start[l] = offset;
+      offset += tree.size();
+    }
+
+    nearest.sort();
+    return IntStream.range(0, nearest.size())
+                    .mapToObj(i -> new VPTree.Entry<>(get(nearest.index(i), start), nearest.distance(i)));
+  }
+
+  // Point with the given number in the numbering used by nearestNeighbors.
+  private T get(int index, int[] start) {
+    if (index < buffer.size()) {
+      return buffer.get(index);
+    }
+    int l = levels.size() - 1;
+    while (levels.get(l) == null || start[l] > index) {
+      l--;
+    }
+    return levels.get(l).tree.get(index - start[l]);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point.
+   *
+   * @param point  Query point.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   */
+  public Stream<VPTree.Entry<T>> withinRadius(T point, double radius) {
+    List<VPTree.Entry<T>> result = new ArrayList<>();
+    for (T p : buffer) {
+      double d = metric.distance(point, p);
+      if (d <= radius) {
+        result.add(new VPTree.Entry<>(p, d));
+      }
+    }
+
+    NeighborBuffer scratch = new NeighborBuffer();
+    for (Level<T> level : levels) {
+      if (level == null) {
+        continue;
+      }
+      level.tree.searchIndices(Integer.MAX_VALUE, radius, point, i -> !level.removed.get(i), scratch);
+      for (int i = 0; i < scratch.size(); i++) {
+        result.add(new VPTree.Entry<>(level.tree.get(scratch.index(i)), scratch.distance(i)));
+      }
+    }
+    return result.stream();
+  }
+}
@@ -0,0 +1,197 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer for the results of a neighbor query in an integer metric space.
+ * <p>
+ * An IntNeighborBuffer holds (point, distance) pairs. After a query, the pairs
+ * are sorted by increasing distance.
+ * <p>
+ * This is the {@link BKTree} counterpart of {@link NeighborBuffer}. Once it has
+ * grown to hold the requested number of neighbors, a buffer can be reused for
+ * further queries without allocating. IntNeighborBuffers are not thread-safe.
+ *
+ * @param <T> The type of points.
+ */
+public final class IntNeighborBuffer<T> {
+  private Object[] points;
+  private int[] distances;
+  private int size;
+  private int k;
+  private SearchStats stats;
+  private SearchStats.Snapshot lastQuery;
+
+  public IntNeighborBuffer() {
+    this(16);
+  }
+
+  /**
+   * @param capacity Initial capacity.
+   */
+  public IntNeighborBuffer(int capacity) {
+    points = new Object[capacity];
+    distances = new int[capacity];
+  }
+
+  /**
+   * Number of neighbors in this buffer.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * The i'th nearest neighbor.
+   */
+  @SuppressWarnings("unchecked")
+  public T point(int i) {
+    checkIndex(i);
+    return (T) points[i];
+  }
+
+  /**
+   * Distance of the i'th nearest neighbor from the query point.
+   */
+  public int distance(int i) {
+    checkIndex(i);
+    return distances[i];
+  }
+
+  /**
+   * Attaches stats to this buffer, so that queries into it are instrumented.
+   *
+   * @param stats Statistics that queries into this buffer add to, or null to
+   *              stop instrumenting them.
+   */
+  public void setStats(SearchStats stats) {
+    this.stats = stats;
+    lastQuery = null;
+  }
+
+  public SearchStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Counters of the last query into this buffer, or null if that query was not
+   * instrumented.
+   */
+  public SearchStats.Snapshot lastQueryStats() {
+    return lastQuery;
+  }
+
+  void recordStats(SearchStats.Counters counters, long elapsedNanos) {
+    lastQuery = stats.record(counters, elapsedNanos);
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException(String.format("index %d, size %d", i, size));
+    }
+  }
+
+  // Empties the buffer, preparing it to collect the k nearest of the
+  // entries offered to it. The buffer grows as needed.
+  void reset(int k) {
+    this.k = k;
+    lastQuery = null;
+    // Drop references to the previous query's results.
+    Arrays.fill(points, 0, size, null);
+    size = 0;
+  }
+
+  boolean isFull() {
+    return size == k;
+  }
+
+  // Largest distance in the buffer. Only valid if !isEmpty().
+  int maxDistance() {
+    return distances[0];
+  }
+
+  // Offers an entry. Returns true if it was added.
+  boolean offer(T point, int distance) {
+    if (size < k) {
+      if (size == points.length) {
+        int capacity = Math.max(16, 2 * size);
+        points = Arrays.copyOf(points, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+      }
+      siftUp(size++, point, distance);
+      return true;
+    }
+    if (size == 0 || distance >= distances[0]) {
+      return false;
+    }
+    siftDown(0, size, point, distance);
+    return true;
+  }
+
+  // Heapsort, turning the max-heap into an array sorted by increasing distance.
+  void sort() {
+    for (int n = size - 1; n > 0; n--) {
+      Object point = points[n];
+      int distance = distances[n];
+      points[n] = points[0];
+      distances[n] = distances[0];
+      siftDown(0, n, point, distance);
+    }
+  }
+
+  private void siftUp(int i, Object point, int distance) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (distances[parent] >= distance) {
+        break;
+      }
+      points[i] = points[parent];
+      distances[i] = distances[parent];
+      i = parent;
+    }
+    points[i] = point;
+    distances[i] = distance;
+  }
+
+  // Sifts (point, distance) down from position i in the heap [0, n).
+  private void siftDown(int i, int n, Object point, int distance) {
+    for (int child; (child = 2 * i + 1) < n; i = child) {
+      if (child + 1 < n && distances[child + 1] > distances[child]) {
+        child++;
+      }
+      if (distance >= distances[child]) {
+        break;
+      }
+      points[i] = points[child];
+      distances[i] = distances[child];
+    }
+    points[i] = point;
+    distances[i] = distance;
+  }
+}
@@ -0,0 +1,528 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * The k-nearest neighbor graph of a set of points.
+ * <p>
+ * A KnnGraph stores, for each of n points, its k nearest neighbors among the
+ * other points and their distances, sorted by increasing distance. The graph
+ * is kept in two flat arrays in row-major order: the r'th nearest neighbor of
+ * point i is {@code neighborArray()[i * k + r]}.
+ * <p>
+ * There are two ways to build a graph:
+ * <ul>
+ * <li>{@link #exact(VPTree, int)} runs a nearest neighbor query in a VP-tree
+ * for every point, in parallel. Since the metric is symmetric, every exact
+ * distance computed for point i's query is also offered to the other point's
+ * row; a row that has filled up this way bounds the search radius of its own
+ * query. Points are identified by their indices in the tree.</li>
+ * <li>{@link #descent(List, Metric, int, SplittableRandom)} runs NN-descent
+ * (Dong, Charikar and Li, Efficient k-nearest neighbor graph construction for
+ * generic similarity measures, 2011), which starts from a random graph and
+ * repeatedly improves it by comparing neighbors of neighbors. The result is
+ * approximate, but the algorithm needs no index and scales to large n.
+ * Points are identified by their indices in the list.</li>
+ * </ul>
+ */
+public final class KnnGraph {
+  private final int n;
+  private final int k;
+  private final int[] neighbors;
+  private final double[] distances;
+
+  private KnnGraph(int n, int k, int[] neighbors, double[] distances) {
+    this.n = n;
+    this.k = k;
+    this.neighbors = neighbors;
+    this.distances = distances;
+  }
+
+  /**
+   * Number of points in the graph.
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Number of neighbors per point. This is the requested k, or n - 1 if that is smaller.
+   */
+  public int k() {
+    return k;
+  }
+
+  /**
+   * Index of the r'th nearest neighbor of point i.
+   */
+  public int neighbor(int i, int r) {
+    return neighbors[offset(i, r)];
+  }
+
+  /**
+   * Distance of the r'th nearest neighbor of point i.
+   */
+  public double distance(int i, int r) {
+    return distances[offset(i, r)];
+  }
+
+  private int offset(int i, int r) {
+    if (i < 0 || i >= n || r < 0 || r >= k) {
+      throw new IndexOutOfBoundsException(String.format("point %d, rank %d, n = %d, k = %d", i, r, n, k));
+    }
+    return i * k + r;
+  }
+
+  /**
+   * The neighbor indices of all points, in row-major order. This is the
+   * graph's internal array, which must not be modified.
+   */
+  public int[] neighborArray() {
+    return neighbors;
+  }
+
+  /**
+   * The neighbor distances of all points, in row-major order. This is the
+   * graph's internal array, which must not be modified.
+   */
+  public double[] distanceArray() {
+    return distances;
+  }
+
+  /**
+   * Computes the exact k-nearest neighbor graph of the points in tree, in
+   * parallel on the common ForkJoinPool.
+   *
+   * @param tree Tree holding the points.
+   * @param k    Number of neighbors per point.
+   */
+  public static <T> KnnGraph exact(VPTree<T> tree, int k) {
+    return exact(tree, k, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Computes the exact k-nearest neighbor graph of the points in tree, using
+   * the given pool for parallel processing.
+   *
+   * @param tree Tree holding the points.
+   * @param k    Number of neighbors per point.
+   * @param pool Pool to run the computation in.
+   */
+  public static <T> KnnGraph exact(VPTree<T> tree, int k, ForkJoinPool pool) {
+    Rows rows = new Rows(tree.size(), k);
+    int n = tree.size();
+    if (rows.k == 0) {
+      return rows.toGraph();
+    }
+    int grain = Math.max(1, n / (8 * pool.getParallelism()));
+    pool.invoke(new ExactTask<>(tree, rows, 0, n, grain));
+    return rows.toGraph();
+  }
+
+  // Finds the neighbors of the points [from, to) of tree.
+  @SuppressWarnings("serial")
+  private static final class ExactTask<T> extends RecursiveAction {
+    private final VPTree<T> tree;
+    private final Rows rows;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    ExactTask(VPTree<T> tree, Rows rows, int from, int to, int grain) {
+      this.tree = tree;
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > grain) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new ExactTask<>(tree, rows, from, mid, grain), new ExactTask<>(tree, rows, mid, to, grain));
+        return;
+      }
+
+      NeighborBuffer nearest = new NeighborBuffer(rows.k);
+      Query query = new Query(rows);
+      for (int i = from; i < to; i++) {
+        query.self = i;
+        tree.searchIndices(rows.k, rows.bound(i), tree.get(i), query, nearest, query);
+        for (int r = 0; r < nearest.size(); r++) {
+          rows.offer(i, nearest.index(r), nearest.distance(r));
+        }
+      }
+    }
+  }
+
+  // The query for point self: accepts every index except self, and offers
+  // self to the row of every point whose distance to it the search computes.
+  // Reused across queries to save allocations.
+  private static final class Query implements IntPredicate, VPTree.DistanceSink {
+    private final Rows rows;
+    int self;
+
+    Query(Rows rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public boolean test(int i) {
+      return i != self;
+    }
+
+    @Override
+    public void accept(int j, double d) {
+      if (j != self) {
+        rows.offer(j, self, d);
+      }
+    }
+  }
+
+  /**
+   * Approximates the k-nearest neighbor graph of points by NN-descent, in
+   * parallel on the common ForkJoinPool.
+   * <p>
+   * Runs at most 20 iterations, stopping early when an iteration improves
+   * fewer than 0.1% of the graph's entries.
+   *
+   * @param points Points to compute the graph of.
+   * @param metric Metric (distance function).
+   * @param k      Number of neighbors per point.
+   * @param rnd    Random number generator.
+   */
+  public static <T> KnnGraph descent(List<? extends T> points, Metric<T> metric, int k, SplittableRandom rnd) {
+    return descent(points, metric, k, rnd, 20, .001, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Approximates the k-nearest neighbor graph of points by NN-descent, using
+   * the given pool for parallel processing.
+   *
+   * @param points        Points to compute the graph of.
+   * @param metric        Metric (distance function).
+   * @param k             Number of neighbors per point.
+   * @param rnd           Random number generator.
+   * @param maxIterations Maximum number of iterations.
+   * @param delta         Stop when an iteration updates fewer than delta * n * k entries.
+   * @param pool          Pool to run the computation in.
+   */
+  public static <T> KnnGraph descent(List<? extends T> points, Metric<T> metric, int k, SplittableRandom rnd,
+                                     int maxIterations, double delta, ForkJoinPool pool) {
+    int n = points.size();
+    Rows rows = new Rows(n, k);
+    k = rows.k;
+    if (k == 0) {
+      return rows.toGraph();
+    }
+
+    // Random initial graph.
+    for (int i = 0; i < n; i++) {
+      while (rows.size[i] < k) {
+        int j = rnd.nextInt(n);
+        if (j != i) {
+          rows.offer(i, j, metric.distance(points.get(i), points.get(j)));
+        }
+      }
+    }
+
+    int grain = Math.max(1, n / (8 * pool.getParallelism()));
+    for (int iter = 0; iter < maxIterations; iter++) {
+      Candidates fresh = new Candidates(n, k);
+      Candidates old = new Candidates(n, k);
+      for (int i = 0; i < n; i++) {
+        for (int r = 0, base = i * k; r < rows.size[i]; r++) {
+          int j = rows.idx[base + r];
+          if (rows.fresh[base + r]) {
+            fresh.add(i, j, rnd);
+            fresh.add(j, i, rnd);
+          } else {
+            old.add(i, j, rnd);
+            old.add(j, i, rnd);
+          }
+        }
+      }
+
+      // Entries that made it into the sample are no longer new. The others
+      // stay new, to be sampled in a later iteration.
+      for (int i = 0; i < n; i++) {
+        for (int r = 0, base = i * k; r < rows.size[i]; r++) {
+          if (rows.fresh[base + r] && fresh.contains(i, rows.idx[base + r])) {
+            rows.fresh[base + r] = false;
+          }
+        }
+      }
+
+      LongAdder updates = new LongAdder();
+      pool.invoke(new DescentTask<>(points, metric, rows, fresh, old, updates, 0, n, grain));
+      if (updates.sum() < delta * n * k) {
+        break;
+      }
+    }
+    return rows.toGraph();
+  }
+
+  // Local joins of NN-descent for the points [from, to): compares every pair
+  // of new candidates, and every new candidate with every old one.
+  @SuppressWarnings("serial")
+  private static final class DescentTask<T> extends RecursiveAction {
+    private final List<? extends T> points;
+    private final Metric<T> metric;
+    private final Rows rows;
+    private final Candidates fresh;
+    private final Candidates old;
+    private final LongAdder updates;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    DescentTask(List<? extends T> points, Metric<T> metric, Rows rows, Candidates fresh, Candidates old,
+                LongAdder updates, int from, int to, int grain) {
+      this.points = points;
+      this.metric = metric;
+      this.rows = rows;
+      this.fresh = fresh;
+      this.old = old;
+      this.updates = updates;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > grain) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new DescentTask<>(points, metric, rows, fresh, old, updates, from, mid, grain),
+          new DescentTask<>(points, metric, rows, fresh, old, updates, mid, to, grain));
+        return;
+      }
+
+      long count = 0;
+      for (int i = from; i < to; i++) {
+        int[] f = fresh.lists[i];
+        int nf = fresh.sizes[i];
+        int[] o = old.lists[i];
+        int no = old.sizes[i];
+        for (int a = 0; a < nf; a++) {
+          for (int b = a + 1; b < nf; b++) {
+            count += join(f[a], f[b]);
+          }
+          for (int b = 0; b < no; b++) {
+            count += join(f[a], o[b]);
+          }
+        }
+      }
+      updates.add(count);
+    }
+
+    private int join(int u, int v) {
+      if (u == v) {
+        return 0;
+      }
+      double d = metric.distance(points.get(u), points.get(v));
+      return (rows.offer(u, v, d) ? 1 : 0) + (rows.offer(v, u, d) ? 1 : 0);
+    }
+  }
+
+  // Per-point candidate lists for an NN-descent iteration, each a uniform
+  // sample of at most capacity of the indices added to it.
+  private static final class Candidates {
+    final int[][] lists;
+    final int[] sizes;
+    final int[] seen;
+    final int capacity;
+
+    Candidates(int n, int capacity) {
+      lists = new int[n][];
+      sizes = new int[n];
+      seen = new int[n];
+      this.capacity = capacity;
+    }
+
+    void add(int i, int j, SplittableRandom rnd) {
+      int[] list = lists[i];
+      if (list == null) {
+        list = lists[i] = new int[capacity];
+      }
+      if (contains(i, j)) {
+        return;
+      }
+      // Reservoir sampling.
+      int s = seen[i]++;
+      if (sizes[i] < capacity) {
+        list[sizes[i]++] = j;
+      } else {
+        int r = rnd.nextInt(s + 1);
+        if (r < capacity) {
+          list[r] = j;
+        }
+      }
+    }
+
+    boolean contains(int i, int j) {
+      int[] list = lists[i];
+      for (int r = 0; r < sizes[i]; r++) {
+        if (list[r] == j) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // The rows of a graph under construction. Row i is a max-heap of at most k
+  // (index, distance) pairs, without duplicate indices, guarded by a lock from
+  // a striped set. fresh marks the entries added since NN-descent last looked.
+  private static final class Rows {
+    private static final int STRIPES = 1 << 10;
+
+    final int n;
+    final int k;
+    final int[] idx;
+    final double[] dist;
+    final boolean[] fresh;
+    final int[] size;
+    private final Object[] locks = new Object[STRIPES];
+
+    Rows(int n, int k) {
+      if (k < 0) {
+        throw new IllegalArgumentException("k must be non-negative, got " + k);
+      }
+      this.n = n;
+      this.k = Math.min(k, Math.max(0, n - 1));
+      if ((long) n * this.k > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException(String.format("graph too large: n = %d, k = %d", n, k));
+      }
+      idx = new int[n * this.k];
+      dist = new double[n * this.k];
+      fresh = new boolean[n * this.k];
+      size = new int[n];
+      for (int i = 0; i < STRIPES; i++) {
+        locks[i] = new Object();
+      }
+    }
+
+    private Object lock(int i) {
+      return locks[i & (STRIPES - 1)];
+    }
+
+    // Largest distance in row i if it is full, else infinity.
+    double bound(int i) {
+      synchronized (lock(i)) {
+        return size[i] == k ? dist[i * k] : Double.POSITIVE_INFINITY;
+      }
+    }
+
+    // Offers j at distance d as a neighbor of i. Returns true if it was added.
+    boolean offer(int i, int j, double d) {
+      int base = i * k;
+      synchronized (lock(i)) {
+        int s = size[i];
+        if (k == 0 || s == k && d >= dist[base]) {
+          return false;
+        }
+        for (int r = 0; r < s; r++) {
+          if (idx[base + r] == j) {
+            return false;
+          }
+        }
+        if (s < k) {
+          siftUp(base, s, j, d);
+          size[i]++;
+        } else {
+          siftDown(base, s, j, d);
+        }
+        return true;
+      }
+    }
+
+    private void siftUp(int base, int r, int j, double d) {
+      while (r > 0) {
+        int parent = (r - 1) >>> 1;
+        if (dist[base + parent] >= d) {
+          break;
+        }
+        move(base + parent, base + r);
+        r = parent;
+      }
+      set(base + r, j, d);
+    }
+
+    private void siftDown(int base, int s, int j, double d) {
+      int r = 0;
+      for (int child; (child = 2 * r + 1) < s; r = child) {
+        if (child + 1 < s && dist[base + child + 1] > dist[base + child]) {
+          child++;
+        }
+        if (d >= dist[base + child]) {
+          break;
+        }
+        move(base + child, base + r);
+      }
+      set(base + r, j, d);
+    }
+
+    private void move(int from, int to) {
+      idx[to] = idx[from];
+      dist[to] = dist[from];
+      fresh[to] = fresh[from];
+    }
+
+    private void set(int at, int j, double d) {
+      idx[at] = j;
+      dist[at] = d;
+      fresh[at] = true;
+    }
+
+    // Sorts the rows by increasing distance. All rows must be full.
+    KnnGraph toGraph() {
+      Integer[] order = new Integer[k];
+      int[] rowIdx = new int[k];
+      double[] rowDist = new double[k];
+      for (int i = 0; i < n; i++) {
+        int base = i * k;
+        for (int r = 0; r < k; r++) {
+          order[r] = r;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(dist[base + a], dist[base + b]));
+        for (int r = 0; r < k; r++) {
+          rowIdx[r] = idx[base + order[r]];
+          rowDist[r] = dist[base + order[r]];
+        }
+        System.arraycopy(rowIdx, 0, idx, base, k);
+        System.arraycopy(rowDist, 0, dist, base, k);
+      }
+      return new KnnGraph(n, k, idx, dist);
+    }
+  }
+}
@@ -0,0 +1,464 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.util.Comparator.comparingDouble;
+
+/**
+ * A multi-vantage-point tree is a spatial index that works with any distance metric.
+ * <p>
+ * An MVP-tree (Bozkaya and Özsoyoglu, Indexing large metric spaces for similarity
+ * search queries, 1999) generalizes the {@link VPTree}. Each node has several
+ * vantage points, and each of these splits the node's points into a number of
+ * shells around it, so that a node has up to arity^vantagePoints children.
+ * Leaves hold buckets of points together with their distances to the leaf's
+ * vantage points and to the first vantage points on the path from the root,
+ * which searches use to rule out points without computing their distance to
+ * the query point.
+ * <p>
+ * The larger fanout makes MVP-trees shallower than VP-trees, which often saves
+ * distance computations in large metric spaces. The query API is that of VPTree.
+ *
+ * @param <T> The type of points.
+ */
+public final class MVPTree<T> implements Iterable<T>, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Number of path distances stored for each leaf point.
+  private static final int PATH_LENGTH = 8;
+
+  // A node's subtree occupies the slots [start, end) of points. Its vantage
+  // points come first, at [start, start + nVantage).
+  //
+  // Internal nodes have children, with the distances from vantage point j to
+  // the points of child c in [lower[c * nVantage + j], upper[c * nVantage + j]].
+  //
+  // Leaves hold their other points at [start + nVantage, end). For each of
+  // these, dist has a row of nVantage + pathLength distances: to the leaf's
+  // vantage points, then to the first pathLength vantage points on the path
+  // from the root.
+  private static final class Node implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int start;
+    final int nVantage;
+    final int end;
+    Node[] children;
+    double[] lower;
+    double[] upper;
+    double[] dist;
+    int pathLength;
+
+    Node(int start, int nVantage, int end) {
+      this.start = start;
+      this.nVantage = nVantage;
+      this.end = end;
+    }
+  }
+
+  // A point during construction, with its distances to the vantage points
+  // of the current node and the path so far.
+  private static final class Item<T> {
+    final T point;
+    final double[] path = new double[PATH_LENGTH];
+    int pathLength;
+    double[] dv;
+
+    Item(T point) {
+      this.point = point;
+    }
+  }
+
+  private final Metric<T> metric;
+  private final int nVantage;
+  private final int arity;
+  private final int leafSize;
+  private final Object[] points;
+  private final Node root;
+  private int height;
+  private transient int next; // Next free slot during construction.
+
+  public MVPTree(Metric<T> metric, Iterable<T> points) {
+    this(metric, points, new SplittableRandom(), 2, 3, 16);
+  }
+
+  /**
+   * Construct MVPTree from given points.
+   *
+   * @param metric        Metric (distance function).
+   * @param points        Collection of points to store in the tree.
+   * @param rnd           Random number generator.
+   * @param vantagePoints Number of vantage points per node.
+   * @param arity         Number of shells each vantage point divides a node's points into.
+   * @param leafSize      Maximum number of points in a leaf, besides its vantage points.
+   */
+  public MVPTree(Metric<T> metric, Iterable<T> points, SplittableRandom rnd,
+                 int vantagePoints, int arity, int leafSize) {
+    if (vantagePoints < 1 || arity < 2 || leafSize < 1) {
+      throw new IllegalArgumentException(String.format(
+        "need vantagePoints >= 1, arity >= 2, leafSize >= 1, got %d, %d, %d",
+        vantagePoints, arity, leafSize));
+    }
+    this.metric = metric;
+    this.nVantage = vantagePoints;
+    this.arity = arity;
+    this.leafSize = leafSize;
+
+    List<Item<T>> items = new ArrayList<>();
+    points.forEach(p -> items.add(new Item<>(p)));
+    this.points = new Object[items.size()];
+    root = items.isEmpty() ? null : construct(items, rnd, 1);
+  }
+
+  private Node construct(List<Item<T>> items, SplittableRandom rnd, int depth) {
+    height = max(height, depth);
+    int start = next;
+    List<Item<T>> vantage = selectVantage(items, rnd);
+    for (Item<T> v : vantage) {
+      points[next++] = v.point;
+    }
+    int nv = vantage.size();
+
+    if (items.size() <= leafSize) {
+      Node leaf = new Node(start, nv, start + nv + items.size());
+      int pathLength = items.isEmpty() ? 0 : items.get(0).pathLength;
+      int width = nv + pathLength;
+      leaf.pathLength = pathLength;
+      leaf.dist = new double[items.size() * width];
+      for (int i = 0; i < items.size(); i++) {
+        Item<T> item = items.get(i);
+        points[next++] = item.point;
+        System.arraycopy(item.dv, 0, leaf.dist, i * width, nv);
+        System.arraycopy(item.path, 0, leaf.dist, i * width + nv, pathLength);
+      }
+      return leaf;
+    }
+
+    for (Item<T> item : items) {
+      for (int j = 0; j < nv && item.pathLength < PATH_LENGTH; j++) {
+        item.path[item.pathLength++] = item.dv[j];
+      }
+    }
+
+    List<List<Item<T>>> groups = new ArrayList<>();
+    partition(items, 0, nv, groups);
+
+    Node node = new Node(start, nv, start + nv + items.size());
+    node.children = new Node[groups.size()];
+    node.lower = new double[groups.size() * nv];
+    node.upper = new double[groups.size() * nv];
+    for (int c = 0; c < groups.size(); c++) {
+      List<Item<T>> group = groups.get(c);
+      for (int j = 0; j < nv; j++) {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (Item<T> item : group) {
+          lo = Math.min(lo, item.dv[j]);
+          hi = max(hi, item.dv[j]);
+        }
+        node.lower[c * nv + j] = lo;
+        node.upper[c * nv + j] = hi;
+      }
+    }
+    // Only now construct the children: they overwrite dv.
+    for (int c = 0; c < groups.size(); c++) {
+      node.children[c] = construct(groups.get(c), rnd, depth + 1);
+    }
+    return node;
+  }
+
+  // Removes up to nVantage vantage points from items and sets each remaining
+  // item's dv to its distances to them. The first vantage point is random,
+  // each next one is the point farthest from the ones chosen so far.
+  private List<Item<T>> selectVantage(List<Item<T>> items, SplittableRandom rnd) {
+    List<Item<T>> vantage = new ArrayList<>();
+    int nv = Math.min(nVantage, items.size());
+    double[] minDist = new double[items.size()];
+    for (Item<T> item : items) {
+      item.dv = new double[nv];
+    }
+
+    int chosen = rnd.nextInt(items.size());
+    for (int j = 0; j < nv; j++) {
+      Item<T> v = items.get(chosen);
+      items.set(chosen, items.get(items.size() - 1));
+      items.remove(items.size() - 1);
+      minDist[chosen] = minDist[items.size()];
+      vantage.add(v);
+
+      chosen = -1;
+      for (int i = 0; i < items.size(); i++) {
+        Item<T> item = items.get(i);
+        double d = metric.distance(item.point, v.point);
+        item.dv[j] = d;
+        minDist[i] = j == 0 ? d : Math.min(minDist[i], d);
+        if (chosen == -1 || minDist[i] > minDist[chosen]) {
+          chosen = i;
+        }
+      }
+      if (chosen == -1) {
+        break;
+      }
+    }
+    return vantage;
+  }
+
+  // Splits items into arity shells by distance to vantage point j, then
+  // recursively splits each shell by the next vantage point.
+  private void partition(List<Item<T>> items, int j, int nv, List<List<Item<T>>> groups) {
+    if (j == nv) {
+      groups.add(items);
+      return;
+    }
+    items.sort(comparingDouble(item -> item.dv[j]));
+    int n = items.size();
+    for (int s = 0; s < arity; s++) {
+      List<Item<T>> shell = items.subList((int) ((long) s * n / arity), (int) ((long) (s + 1) * n / arity));
+      if (!shell.isEmpty()) {
+        partition(new ArrayList<>(shell), j + 1, nv, groups);
+      }
+    }
+  }
+
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  public boolean isEmpty() {
+    return points.length == 0;
+  }
+
+  public int size() {
+    return points.length;
+  }
+
+  /**
+   * Returns the point at the given index.
+   *
+   * @see VPTree#get(int)
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    return (T) points[index];
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return stream().iterator();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Spliterator<T> spliterator() {
+    return (Spliterator<T>) Spliterators.spliterator(points, Spliterator.IMMUTABLE);
+  }
+
+  /**
+   * A stream containing all points within the tree.
+   */
+  public Stream<T> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   *
+   * @see VPTree#nearestNeighbors(int, Object)
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, T point) {
+    return nearestNeighbors(k, Double.POSITIVE_INFINITY, point, x -> true);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a subset
+   * of the points in the tree.
+   *
+   * @see VPTree#nearestNeighbors(int, Object, Predicate)
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, T point, Predicate<? super T> predicate) {
+    return nearestNeighbors(k, Double.POSITIVE_INFINITY, point, predicate);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
+   *
+   * @see VPTree#nearestNeighbors(int, double, Object, Predicate)
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate) {
+    NeighborBuffer nearest = new NeighborBuffer(max(0, Math.min(k, size())));
+    nearestNeighbors(k, radius, point, predicate, nearest);
+    return entries(nearest);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, storing them in result.
+   *
+   * @see VPTree#nearestNeighbors(int, Object, NeighborBuffer)
+   */
+  public void nearestNeighbors(int k, T point, NeighborBuffer result) {
+    search(k, Double.POSITIVE_INFINITY, point, i -> true, result);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree, storing them in result.
+   *
+   * @see VPTree#nearestNeighbors(int, double, Object, Predicate, NeighborBuffer)
+   */
+  public void nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate,
+                               NeighborBuffer result) {
+    search(k, radius, point, i -> predicate.test(get(i)), result);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   *
+   * @see VPTree#withinRadius(Object, double)
+   */
+  public Stream<VPTree.Entry<T>> withinRadius(T point, double radius) {
+    return withinRadius(point, radius, x -> true);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point that satisfy a predicate.
+   *
+   * @see VPTree#withinRadius(Object, double, Predicate)
+   */
+  public Stream<VPTree.Entry<T>> withinRadius(T point, double radius, Predicate<? super T> predicate) {
+    NeighborBuffer result = new NeighborBuffer();
+    search(Integer.MAX_VALUE, radius, point, i -> predicate.test(get(i)), result);
+    return entries(result);
+  }
+
+  private Stream<VPTree.Entry<T>> entries(NeighborBuffer buffer) {
+    return IntStream.range(0, buffer.size())
+                    .mapToObj(i -> new VPTree.Entry<>(get(buffer.index(i)), buffer.distance(i)));
+  }
+
+  private void search(int k, double radius, T point, IntPredicate accept, NeighborBuffer result) {
+    result.reset(k);
+    if (root != null) {
+      int fanout = maxChildren();
+      double[] scratch = result.scratch(Math.toIntExact((long) height * (nVantage + fanout)));
+      search(root, 0, 0, point, radius, accept, result, scratch, fanout);
+    }
+    result.sort();
+  }
+
+  // Upper bound on the number of children of a node.
+  private int maxChildren() {
+    long c = 1;
+    for (int j = 0; j < nVantage && c < points.length; j++) {
+      c *= arity;
+    }
+    return (int) Math.min(c, points.length);
+  }
+
+  // Branch-and-bound search, as in VPTree. path[0:pathLength] holds the
+  // distances from point to the vantage points on the path from the root,
+  // in order. path[height * nVantage:] holds, for each depth, fanout
+  // lower bounds on the distances to the children of the node at that depth.
+  private double search(Node node, int depth, int pathLength, T point, double radius, IntPredicate accept,
+                        NeighborBuffer result, double[] path, int fanout) {
+    int nv = node.nVantage;
+    for (int j = 0; j < nv; j++) {
+      int i = node.start + j;
+      double d = metric.distance(point, get(i));
+      path[pathLength + j] = d;
+      if (d <= radius && accept.test(i) && result.offer(i, d) && result.isFull()) {
+        radius = result.maxDistance();
+      }
+    }
+
+    if (node.children == null) {
+      int width = nv + node.pathLength;
+      for (int i = node.start + nv, row = 0; i < node.end; i++, row += width) {
+        if (leafBound(node, row, pathLength, path) > radius || !accept.test(i)) {
+          continue;
+        }
+        double d = metric.distance(point, get(i));
+        if (d <= radius && result.offer(i, d) && result.isFull()) {
+          radius = result.maxDistance();
+        }
+      }
+      return radius;
+    }
+
+    // Visit the children in order of increasing lower bound on their distance.
+    Node[] children = node.children;
+    int bounds = height * nVantage + depth * fanout;
+    for (int c = 0; c < children.length; c++) {
+      double bound = 0;
+      for (int j = 0; j < nv; j++) {
+        double d = path[pathLength + j];
+        bound = max(bound, max(d - node.upper[c * nv + j], node.lower[c * nv + j] - d));
+      }
+      path[bounds + c] = bound;
+    }
+    for (int visited = 0; visited < children.length; visited++) {
+      int best = -1;
+      for (int c = 0; c < children.length; c++) {
+        if (path[bounds + c] <= radius && (best == -1 || path[bounds + c] < path[bounds + best])) {
+          best = c;
+        }
+      }
+      if (best == -1) {
+        break;
+      }
+      path[bounds + best] = Double.POSITIVE_INFINITY;
+      radius = search(children[best], depth + 1, pathLength + nv, point, radius, accept, result, path, fanout);
+    }
+    return radius;
+  }
+
+  // Lower bound on the distance from the query point to a leaf point, by the
+  // triangle inequality on their distances to the leaf's vantage points and
+  // the first vantage points on the path.
+  private static double leafBound(Node leaf, int row, int pathLength, double[] path) {
+    int nv = leaf.nVantage;
+    double bound = 0;
+    for (int j = 0; j < nv; j++) {
+      bound = max(bound, abs(path[pathLength + j] - leaf.dist[row + j]));
+    }
+    for (int a = 0; a < leaf.pathLength; a++) {
+      bound = max(bound, abs(path[a] - leaf.dist[row + nv + a]));
+    }
+    return bound;
+  }
+}
@@ -0,0 +1,484 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A read-only {@link VPTree} that lives in a memory-mapped file.
+ * <p>
+ * A VP-tree is written to a file with {@link #write}, or built directly into
+ * a file by a {@link #builder}, for trees larger than memory. Opening the
+ * file with {@link #open} only maps it into memory, so it takes constant time
+ * regardless of the size of the tree. Queries read the tree structure directly
+ * from the mapping and decode only the points they visit, leaving it to the
+ * operating system to page in the parts of the file that are used.
+ * <p>
+ * Indices, as returned in {@link NeighborBuffer}s and accepted by {@link #get},
+ * are the same as those of the VPTree that was written.
+ * <p>
+ * Searches prune by the same shell bounds as VPTree, and pass thresholds to
+ * a {@link BoundedMetric}. The pivot table of a VPTree with leaf buckets is
+ * not stored: at eight doubles per point, it would often outweigh the points
+ * themselves, and a {@link #builder} cannot compute it across the subtrees it
+ * builds separately. Leaf buckets are therefore scanned in full.
+ *
+ * @param <T> The type of points.
+ */
+public final class MappedVPTree<T> implements Iterable<T> {
+  // File layout. All numbers are big-endian.
+  //
+  //   header      int magic, int version, int n, int 0,
+  //               long payloadStart, long offsetsStart
+  //   radii       double[n]
+  //   insideMin   double[n]
+  //   insideMax   double[n]
+  //   outsideMax  double[n]
+  //   outside     int[n], padded to a multiple of eight bytes
+  //   payload     encoded points, in index order
+  //   offsets     long[n + 1], start of each point relative to payloadStart
+  //
+  // The node arrays are those of VPTree.
+  static final int MAGIC = 0x56505446; // "VPTF"
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 32;
+
+  // Indices of the double arrays after the header.
+  static final int RADII = 0;
+  static final int INSIDE_MIN = 1;
+  static final int INSIDE_MAX = 2;
+  static final int OUTSIDE_MAX = 3;
+  static final int DOUBLE_ARRAYS = 4;
+
+  // Files are mapped in segments of this size. Since all arrays start at a
+  // multiple of eight, no number straddles segments.
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+  private final Metric<T> metric;
+  // metric, if it is a BoundedMetric.
+  private final BoundedMetric<T> bounded;
+  private final PointCodec<T> codec;
+  private final MappedByteBuffer[] segments;
+  private final int n;
+  private final long payloadStart;
+  private final long offsetsStart;
+
+  @SuppressWarnings("unchecked")
+  private MappedVPTree(Metric<T> metric, PointCodec<T> codec, FileChannel channel) throws IOException {
+    this.metric = metric;
+    this.bounded = metric instanceof BoundedMetric ? (BoundedMetric<T>) metric : null;
+    this.codec = codec;
+
+    long fileSize = channel.size();
+    segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+    for (int i = 0; i < segments.length; i++) {
+      long start = (long) i << SEGMENT_SHIFT;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+        Math.min(SEGMENT_MASK + 1, fileSize - start));
+    }
+
+    if (fileSize < HEADER_SIZE || getInt(0) != MAGIC) {
+      throw new IOException("not a VP-tree file");
+    }
+    if (getInt(4) != VERSION) {
+      throw new IOException(String.format("unsupported VP-tree file version %d", getInt(4)));
+    }
+    n = getInt(8);
+    payloadStart = getLong(16);
+    offsetsStart = getLong(24);
+    if (n < 0 || payloadStart < outsidePosition(n) + (long) Integer.BYTES * n
+        || offsetsStart < payloadStart || offsetsStart % 8 != 0) {
+      throw new IOException("corrupt VP-tree file header");
+    }
+    if (offsetsStart > fileSize - Long.BYTES * (n + 1L)) {
+      throw new IOException("truncated VP-tree file");
+    }
+    if (getLong(offsetsStart) != 0 || getLong(offsetsStart + (long) Long.BYTES * n) > offsetsStart - payloadStart) {
+      throw new IOException("corrupt VP-tree file offsets");
+    }
+  }
+
+  // Position of double array a in a file of n points.
+  static long arrayPosition(int a, int n) {
+    return HEADER_SIZE + (long) a * Double.BYTES * n;
+  }
+
+  // Position of the outside array in a file of n points.
+  static long outsidePosition(int n) {
+    return arrayPosition(DOUBLE_ARRAYS, n);
+  }
+
+  /**
+   * Opens a file written by {@link #write}.
+   *
+   * @param path   File to open.
+   * @param metric Metric. Should be the same as that of the tree that was written.
+   * @param codec  Codec for points. Should be the same as that used to write the tree.
+   */
+  public static <T> MappedVPTree<T> open(Path path, Metric<T> metric, PointCodec<T> codec)
+    throws IOException {
+    // The mapping stays valid after the channel is closed.
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      return new MappedVPTree<>(metric, codec, channel);
+    }
+  }
+
+  /**
+   * Writes tree to a file, replacing any existing file at path.
+   *
+   * @param tree  Tree to write.
+   * @param codec Codec for the points in tree.
+   * @param path  File to write to.
+   */
+  public static <T> void write(VPTree<T> tree, PointCodec<? super T> codec, Path path) throws IOException {
+    int n = tree.size();
+    try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      ChannelWriter out = new ChannelWriter(channel, HEADER_SIZE);
+      for (int i = 0; i < n; i++) {
+        out.putDouble(tree.radius(i));
+      }
+      for (int i = 0; i < n; i++) {
+        out.putDouble(tree.insideMin(i));
+      }
+      for (int i = 0; i < n; i++) {
+        out.putDouble(tree.insideMax(i));
+      }
+      for (int i = 0; i < n; i++) {
+        out.putDouble(tree.outsideMax(i));
+      }
+      for (int i = 0; i < n; i++) {
+        out.putInt(tree.outsideStart(i));
+      }
+      out.align();
+
+      long payloadStart = out.position();
+      long[] offsets = new long[n + 1];
+      for (int i = 0; i < n; i++) {
+        out.put(codec.encode(tree.get(i)));
+        offsets[i + 1] = out.position() - payloadStart;
+      }
+      out.align();
+
+      long offsetsStart = out.position();
+      for (long offset : offsets) {
+        out.putLong(offset);
+      }
+      out.flush();
+      writeHeader(channel, n, payloadStart, offsetsStart);
+    }
+  }
+
+  static void writeHeader(FileChannel channel, int n, long payloadStart, long offsetsStart)
+    throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0)
+          .putLong(payloadStart).putLong(offsetsStart).flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+  }
+
+  /**
+   * Returns a builder that writes VP-tree files without holding all points in memory.
+   *
+   * @param metric Metric (distance function).
+   * @param codec  Codec for points.
+   * @see MappedVPTreeBuilder
+   */
+  public static <T> MappedVPTreeBuilder<T> builder(Metric<T> metric, PointCodec<T> codec) {
+    return new MappedVPTreeBuilder<>(metric, codec);
+  }
+
+  // Buffered sequential writer for FileChannels.
+  static final class ChannelWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+    private long position;
+
+    ChannelWriter(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    long position() {
+      return position + buf.position();
+    }
+
+    void putDouble(double x) throws IOException {
+      ensure(Double.BYTES);
+      buf.putDouble(x);
+    }
+
+    void putInt(int x) throws IOException {
+      ensure(Integer.BYTES);
+      buf.putInt(x);
+    }
+
+    void putLong(long x) throws IOException {
+      ensure(Long.BYTES);
+      buf.putLong(x);
+    }
+
+    void put(byte[] bytes) throws IOException {
+      for (int off = 0; off < bytes.length; ) {
+        ensure(1);
+        int len = Math.min(bytes.length - off, buf.remaining());
+        buf.put(bytes, off, len);
+        off += len;
+      }
+    }
+
+    // Pads the output to a multiple of eight bytes.
+    void align() throws IOException {
+      while (position() % 8 != 0) {
+        ensure(1);
+        buf.put((byte) 0);
+      }
+    }
+
+    private void ensure(int nbytes) throws IOException {
+      if (buf.remaining() < nbytes) {
+        flush();
+      }
+    }
+
+    void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) {
+        position += channel.write(buf, position);
+      }
+      buf.clear();
+    }
+  }
+
+  private ByteBuffer segment(long pos) {
+    return segments[(int) (pos >>> SEGMENT_SHIFT)];
+  }
+
+  private int getInt(long pos) {
+    return segment(pos).getInt((int) (pos & SEGMENT_MASK));
+  }
+
+  private long getLong(long pos) {
+    return segment(pos).getLong((int) (pos & SEGMENT_MASK));
+  }
+
+  private double getDouble(int array, int i) {
+    long pos = arrayPosition(array, n) + (long) Double.BYTES * i;
+    return segment(pos).getDouble((int) (pos & SEGMENT_MASK));
+  }
+
+  private int outsideStart(int i) {
+    return getInt(outsidePosition(n) + (long) Integer.BYTES * i);
+  }
+
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  /**
+   * Returns the point at the given index, decoding it from the file.
+   */
+  public T get(int index) {
+    if (index < 0 || index >= n) {
+      throw new IndexOutOfBoundsException(String.format("index %d, size %d", index, n));
+    }
+    long start = payloadStart + getLong(offsetsStart + (long) Long.BYTES * index);
+    long end = payloadStart + getLong(offsetsStart + (long) Long.BYTES * (index + 1));
+
+    ByteBuffer buf;
+    if ((start >>> SEGMENT_SHIFT) == ((end - 1) >>> SEGMENT_SHIFT) || start == end) {
+      buf = segment(start).duplicate();
+      int off = (int) (start & SEGMENT_MASK);
+      buf.limit(off + (int) (end - start)).position(off);
+    } else {
+      // Point straddles segments. Copy it.
+      byte[] bytes = new byte[(int) (end - start)];
+      for (int i = 0; i < bytes.length; i++) {
+        long pos = start + i;
+        bytes[i] = segment(pos).get((int) (pos & SEGMENT_MASK));
+      }
+      buf = ByteBuffer.wrap(bytes);
+    }
+    return codec.decode(buf);
+  }
+
+  public boolean isEmpty() {
+    return n == 0;
+  }
+
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   *
+   * @see VPTree#nearestNeighbors(int, Object)
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, T point) {
+    return nearestNeighbors(k, Double.POSITIVE_INFINITY, point, x -> true);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
+   *
+   * @see VPTree#nearestNeighbors(int, double, Object, Predicate)
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate) {
+    NeighborBuffer nearest = new NeighborBuffer(Math.max(0, Math.min(k, n)));
+    nearestNeighbors(k, radius, point, predicate, nearest);
+    return entries(nearest);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, storing them in result.
+   *
+   * @see VPTree#nearestNeighbors(int, Object, NeighborBuffer)
+   */
+  public void nearestNeighbors(int k, T point, NeighborBuffer result) {
+    nearestNeighbors(k, Double.POSITIVE_INFINITY, point, x -> true, result);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree, storing them in result.
+   *
+   * @see VPTree#nearestNeighbors(int, double, Object, Predicate, NeighborBuffer)
+   */
+  public void nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate,
+                               NeighborBuffer result) {
+    result.reset(k);
+    search(0, n, point, radius, predicate, result);
+    result.sort();
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   *
+   * @see VPTree#withinRadius(Object, double)
+   */
+  public Stream<VPTree.Entry<T>> withinRadius(T point, double radius) {
+    NeighborBuffer result = new NeighborBuffer();
+    result.reset(Integer.MAX_VALUE);
+    search(0, n, point, radius, x -> true, result);
+    return entries(result);
+  }
+
+  private Stream<VPTree.Entry<T>> entries(NeighborBuffer buffer) {
+    return IntStream.range(0, buffer.size())
+                    .mapToObj(i -> new VPTree.Entry<>(get(buffer.index(i)), buffer.distance(i)));
+  }
+
+  // Same algorithm as VPTree.search, without the pivot table.
+  private double search(int lo, int hi, T point, double radius, Predicate<? super T> predicate,
+                        NeighborBuffer result) {
+    if (lo >= hi) {
+      return radius;
+    }
+
+    double nodeRadius = getDouble(RADII, lo);
+    if (Double.isNaN(nodeRadius)) {
+      // Leaf bucket holding [lo, hi).
+      for (int i = lo; i < hi; i++) {
+        T p = get(i);
+        if (!predicate.test(p)) {
+          continue;
+        }
+        double d = distance(point, p, radius);
+        if (d <= radius && result.offer(i, d) && result.isFull()) {
+          radius = result.maxDistance();
+        }
+      }
+      return radius;
+    }
+
+    T center = get(lo);
+    double insideMax = getDouble(INSIDE_MAX, lo);
+    double outsideMax = getDouble(OUTSIDE_MAX, lo);
+    double reach = Double.isNaN(outsideMax) ? insideMax : Math.max(insideMax, outsideMax);
+    double d = distance(point, center, reach + radius);
+    if (d <= radius && predicate.test(center) && result.offer(lo, d) && result.isFull()) {
+      radius = result.maxDistance();
+    }
+
+    // NaN for an empty outside subtree, which makes all comparisons fail.
+    double insideBound = Math.max(d - insideMax, getDouble(INSIDE_MIN, lo) - d);
+    double outsideBound = Math.max(d - outsideMax, nodeRadius - d);
+
+    int mid = outsideStart(lo);
+    if (insideBound <= outsideBound) {
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, point, radius, predicate, result);
+      }
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, point, radius, predicate, result);
+      }
+    } else {
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, point, radius, predicate, result);
+      }
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, point, radius, predicate, result);
+      }
+    }
+    return radius;
+  }
+
+  private double distance(T point, T other, double threshold) {
+    return bounded == null ? metric.distance(point, other) : bounded.distance(point, other, threshold);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return stream().iterator();
+  }
+
+  @Override
+  public Spliterator<T> spliterator() {
+    return stream().spliterator();
+  }
+
+  /**
+   * A stream containing all points within the tree.
+   */
+  public Stream<T> stream() {
+    return IntStream.range(0, n).mapToObj(this::get);
+  }
+}
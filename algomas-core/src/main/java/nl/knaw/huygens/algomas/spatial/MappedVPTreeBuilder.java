@@ -0,0 +1,408 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Builds VP-tree files, for use with {@link MappedVPTree}, from more points
+ * than fit in memory.
+ * <p>
+ * The builder first copies the points to a temporary run file. It then splits
+ * runs that are too large to handle in memory around a vantage point, chosen
+ * from a random sample of the run, at the median distance from the vantage
+ * point to the sample. The points of a run are streamed from disk into two
+ * new runs, the inside and outside subtrees. Runs of at most
+ * {@link #memoryLimit(int)} points are read into memory and indexed by a
+ * {@link VPTree}. Nodes are written to the tree file as they are made, so the
+ * builder's memory use is bounded by the memory limit and the sample size.
+ * <p>
+ * Splitting at a sample median gives somewhat less balanced trees than
+ * VPTree's exact medians. A file of n points takes log2(n / memoryLimit)
+ * passes over the data, plus up to twice its size in temporary disk space.
+ *
+ * @param <T> The type of points.
+ */
+public final class MappedVPTreeBuilder<T> {
+  // Number of points whose distances are computed in parallel while splitting.
+  private static final int CHUNK = 1 << 12;
+
+  private final Metric<T> metric;
+  private final PointCodec<T> codec;
+  private int memoryLimit = 1 << 20;
+  private int sampleSize = 1 << 10;
+  private Path tempDirectory = null;
+  private SplittableRandom rnd = new SplittableRandom();
+  // Run files that exist on disk, deleted by build if it fails.
+  private final Set<Path> runs = new HashSet<>();
+
+  MappedVPTreeBuilder(Metric<T> metric, PointCodec<T> codec) {
+    this.metric = metric;
+    this.codec = codec;
+  }
+
+  /**
+   * Sets the maximum number of points to hold in memory at once.
+   */
+  public MappedVPTreeBuilder<T> memoryLimit(int maxPoints) {
+    if (maxPoints < 1) {
+      throw new IllegalArgumentException("memory limit must be positive, got " + maxPoints);
+    }
+    this.memoryLimit = maxPoints;
+    return this;
+  }
+
+  /**
+   * Sets the number of points sampled to choose vantage points and split distances.
+   */
+  public MappedVPTreeBuilder<T> sampleSize(int sampleSize) {
+    if (sampleSize < 2) {
+      throw new IllegalArgumentException("sample size must be at least 2, got " + sampleSize);
+    }
+    this.sampleSize = sampleSize;
+    return this;
+  }
+
+  /**
+   * Sets the directory for temporary files. By default, they are put in the
+   * directory of the tree file.
+   */
+  public MappedVPTreeBuilder<T> tempDirectory(Path dir) {
+    this.tempDirectory = dir;
+    return this;
+  }
+
+  /**
+   * Seeds the random number generator, for reproducible trees.
+   */
+  public MappedVPTreeBuilder<T> seed(long seed) {
+    this.rnd = new SplittableRandom(seed);
+    return this;
+  }
+
+  public void build(Iterable<? extends T> points, Path path) throws IOException {
+    build(points.iterator(), path);
+  }
+
+  /**
+   * Builds a VP-tree file from the given points, replacing any existing file at path.
+   * Temporary files are removed also when the build fails.
+   *
+   * @param points Points to store in the tree, e.g., decoded from a file as they
+   *               are read.
+   * @param path   File to write to.
+   */
+  public void build(Iterator<? extends T> points, Path path) throws IOException {
+    Path dir = tempDirectory != null ? tempDirectory : path.toAbsolutePath().getParent();
+    try {
+      Run input;
+      try (RunWriter writer = new RunWriter(dir)) {
+        while (points.hasNext()) {
+          writer.add(codec.encode(points.next()));
+        }
+        input = writer.finish();
+      }
+      if (input.size > Integer.MAX_VALUE - 8) {
+        delete(input.path);
+        throw new IllegalArgumentException("too many points for a VP-tree file: " + input.size);
+      }
+      int n = (int) input.size;
+
+      // The offsets are only known after the payload has been written, so they
+      // go to a temporary file first, to be appended to the tree file.
+      Path offsetsPath = Files.createTempFile(dir, "vptree", ".offsets");
+      try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE);
+           FileChannel offsetsChannel = FileChannel.open(offsetsPath, READ, WRITE, DELETE_ON_CLOSE)) {
+        long payloadStart = align(MappedVPTree.outsidePosition(n) + (long) Integer.BYTES * n);
+        Output out = new Output(channel, n, payloadStart, offsetsChannel);
+        out.offsets.putLong(0);
+        construct(input, 0, out);
+
+        for (MappedVPTree.ChannelWriter array : out.arrays) {
+          array.flush();
+        }
+        out.outside.flush();
+        out.payload.align();
+        long offsetsStart = out.payload.position();
+        out.payload.flush();
+        out.offsets.flush();
+        for (long done = 0, size = offsetsChannel.size(); done < size; ) {
+          done += offsetsChannel.transferTo(done, size - done, channel.position(offsetsStart + done));
+        }
+        MappedVPTree.writeHeader(channel, n, payloadStart, offsetsStart);
+      } finally {
+        Files.deleteIfExists(offsetsPath);
+      }
+    } catch (Throwable e) {
+      for (Path run : runs) {
+        try {
+          Files.deleteIfExists(run);
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      runs.clear();
+      throw e;
+    }
+  }
+
+  private static long align(long position) {
+    return (position + 7) & ~7L;
+  }
+
+  // Writers for the node arrays and payload of the tree file, and for the
+  // temporary offsets file. The tree is written in slot order.
+  private static final class Output {
+    // Writers for the double arrays, indexed by MappedVPTree.RADII etc.
+    final MappedVPTree.ChannelWriter[] arrays = new MappedVPTree.ChannelWriter[MappedVPTree.DOUBLE_ARRAYS];
+    final MappedVPTree.ChannelWriter outside;
+    final MappedVPTree.ChannelWriter payload;
+    final MappedVPTree.ChannelWriter offsets;
+    final long payloadStart;
+
+    Output(FileChannel channel, int n, long payloadStart, FileChannel offsetsChannel) {
+      for (int a = 0; a < arrays.length; a++) {
+        arrays[a] = new MappedVPTree.ChannelWriter(channel, MappedVPTree.arrayPosition(a, n));
+      }
+      outside = new MappedVPTree.ChannelWriter(channel, MappedVPTree.outsidePosition(n));
+      payload = new MappedVPTree.ChannelWriter(channel, payloadStart);
+      offsets = new MappedVPTree.ChannelWriter(offsetsChannel, 0);
+      this.payloadStart = payloadStart;
+    }
+
+    void node(double radius, double insideMin, double insideMax, double outsideMax, int outsideStart,
+              byte[] point) throws IOException {
+      arrays[MappedVPTree.RADII].putDouble(radius);
+      arrays[MappedVPTree.INSIDE_MIN].putDouble(insideMin);
+      arrays[MappedVPTree.INSIDE_MAX].putDouble(insideMax);
+      arrays[MappedVPTree.OUTSIDE_MAX].putDouble(outsideMax);
+      outside.putInt(outsideStart);
+      payload.put(point);
+      offsets.putLong(payload.position() - payloadStart);
+    }
+  }
+
+  // Writes the subtree for the points in run to the slots starting at offset
+  // of file. Deletes the run file.
+  private void construct(Run run, int offset, Output file) throws IOException {
+    if (run.size <= memoryLimit) {
+      List<T> points = new ArrayList<>((int) run.size);
+      try (RunReader reader = new RunReader(run.path)) {
+        for (long i = 0; i < run.size; i++) {
+          points.add(decode(reader.next()));
+        }
+      }
+      delete(run.path);
+      VPTree<T> tree = VPTree.builder(metric).seed(rnd.nextLong()).build(points);
+      for (int i = 0; i < tree.size(); i++) {
+        file.node(tree.radius(i), tree.insideMin(i), tree.insideMax(i), tree.outsideMax(i),
+          offset + tree.outsideStart(i), codec.encode(tree.get(i)));
+      }
+      return;
+    }
+
+    // Choose the vantage point among the sample, as the one with the greatest
+    // spread of distances to the rest of the sample.
+    List<T> sample = new ArrayList<>(run.sample.length);
+    for (byte[] bytes : run.sample) {
+      sample.add(decode(bytes));
+    }
+    int nCandidates = Math.max(1, (int) Math.sqrt(sample.size()));
+    int best = -1;
+    double bestSpread = Double.NEGATIVE_INFINITY;
+    double[] bestDist = null;
+    for (int c = 0; c < nCandidates; c++) {
+      T candidate = sample.get(c);
+      int skip = c;
+      double[] dist = IntStream.range(0, sample.size()).filter(i -> i != skip).parallel()
+                               .mapToDouble(i -> metric.distance(sample.get(i), candidate)).toArray();
+      double mean = Arrays.stream(dist).average().getAsDouble();
+      // spread = mean absolute deviation.
+      double spread = Arrays.stream(dist).map(d -> Math.abs(d - mean)).average().getAsDouble();
+      if (spread > bestSpread) {
+        best = c;
+        bestSpread = spread;
+        bestDist = dist;
+      }
+    }
+    T vantage = sample.get(best);
+    long vantagePosition = run.positions[best];
+    Arrays.sort(bestDist);
+    double median = bestDist[bestDist.length / 2];
+
+    // Inside points are at distance <= median, outside points at >= median.
+    // Ties go to the smaller side, so that runs of equidistant points shrink.
+    // The distances also give the bounds of the subtrees' shells.
+    Run inside;
+    Run outside;
+    double insideMin = Double.POSITIVE_INFINITY;
+    double insideMax = Double.NEGATIVE_INFINITY;
+    double outsideMax = Double.NaN;
+    try (RunReader reader = new RunReader(run.path);
+         RunWriter in = new RunWriter(run.path.getParent());
+         RunWriter out = new RunWriter(run.path.getParent())) {
+      byte[][] chunk = new byte[CHUNK][];
+      double[] dist = new double[CHUNK];
+      for (long pos = 0; pos < run.size; ) {
+        int m = (int) Math.min(CHUNK, run.size - pos);
+        for (int i = 0; i < m; i++) {
+          chunk[i] = reader.next();
+        }
+        IntStream.range(0, m).parallel().forEach(i -> dist[i] = metric.distance(decode(chunk[i]), vantage));
+        for (int i = 0; i < m; i++, pos++) {
+          if (pos == vantagePosition) {
+            continue;
+          }
+          double d = dist[i];
+          if (d < median || d == median && in.size <= out.size) {
+            in.add(chunk[i]);
+            insideMin = Math.min(insideMin, d);
+            insideMax = Math.max(insideMax, d);
+          } else {
+            out.add(chunk[i]);
+            outsideMax = Double.isNaN(outsideMax) ? d : Math.max(outsideMax, d);
+          }
+        }
+      }
+      inside = in.finish();
+      outside = out.finish();
+    }
+    delete(run.path);
+
+    int outsideOffset = offset + 1 + (int) inside.size;
+    file.node(median, insideMin, insideMax, outsideMax, outsideOffset, run.sample[best]);
+    construct(inside, offset + 1, file);
+    construct(outside, outsideOffset, file);
+  }
+
+  private void delete(Path run) throws IOException {
+    Files.delete(run);
+    runs.remove(run);
+  }
+
+  private T decode(byte[] bytes) {
+    return codec.decode(ByteBuffer.wrap(bytes));
+  }
+
+  // A temporary file of length-prefixed encoded points, with a uniform random
+  // sample of them and their positions in the file.
+  private static final class Run {
+    final Path path;
+    final long size;
+    final byte[][] sample;
+    final long[] positions;
+
+    Run(Path path, long size, byte[][] sample, long[] positions) {
+      this.path = path;
+      this.size = size;
+      this.sample = sample;
+      this.positions = positions;
+    }
+  }
+
+  // Writes a run, drawing its sample by reservoir sampling.
+  private final class RunWriter implements Closeable {
+    private final Path path;
+    private final DataOutputStream out;
+    private final byte[][] sample = new byte[sampleSize][];
+    private final long[] positions = new long[sampleSize];
+    private boolean finished = false;
+    long size = 0;
+
+    RunWriter(Path dir) throws IOException {
+      path = Files.createTempFile(dir, "vptree", ".run");
+      runs.add(path);
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+    }
+
+    void add(byte[] point) throws IOException {
+      out.writeInt(point.length);
+      out.write(point);
+      long j = size < sampleSize ? size : rnd.nextLong(size + 1);
+      if (j < sampleSize) {
+        sample[(int) j] = point;
+        positions[(int) j] = size;
+      }
+      size++;
+    }
+
+    Run finish() throws IOException {
+      out.close();
+      finished = true;
+      int s = (int) Math.min(size, sampleSize);
+      return new Run(path, size, Arrays.copyOf(sample, s), Arrays.copyOf(positions, s));
+    }
+
+    // Deletes the run if it was not finished, e.g., because of an exception.
+    @Override
+    public void close() throws IOException {
+      if (!finished) {
+        out.close();
+        delete(path);
+      }
+    }
+  }
+
+  private static final class RunReader implements Closeable {
+    private final DataInputStream in;
+
+    RunReader(Path path) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+    }
+
+    byte[] next() throws IOException {
+      byte[] point = new byte[in.readInt()];
+      in.readFully(point);
+      return point;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
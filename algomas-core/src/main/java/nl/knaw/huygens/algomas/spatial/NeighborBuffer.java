@@ -0,0 +1,225 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer for the results of a neighbor query.
+ * <p>
+ * A NeighborBuffer holds (index, distance) pairs, where the index identifies a
+ * point in the index structure that filled the buffer, e.g., through
+ * {@link VPTree#get(int)}. After a query, the pairs are sorted by increasing
+ * distance.
+ * <p>
+ * While a query runs, the buffer is a max-heap on distance. Once it has grown
+ * to hold the requested number of neighbors, a buffer can be reused for further
+ * queries without allocating. NeighborBuffers are not thread-safe.
+ */
+public final class NeighborBuffer {
+  private int[] indices;
+  private double[] distances;
+  private int size;
+  private int k;
+  private boolean approximate;
+  private SearchStats stats;
+  private SearchStats.Snapshot lastQuery;
+  // Scratch space for searches, reused across queries.
+  private double[] scratch = new double[0];
+
+  public NeighborBuffer() {
+    this(16);
+  }
+
+  /**
+   * @param capacity Initial capacity.
+   */
+  public NeighborBuffer(int capacity) {
+    indices = new int[capacity];
+    distances = new double[capacity];
+  }
+
+  /**
+   * Number of neighbors in this buffer.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Index of the i'th nearest neighbor.
+   */
+  public int index(int i) {
+    checkIndex(i);
+    return indices[i];
+  }
+
+  /**
+   * Distance of the i'th nearest neighbor from the query point.
+   */
+  public double distance(int i) {
+    checkIndex(i);
+    return distances[i];
+  }
+
+  /**
+   * Reports whether the last query was cut short by its {@link SearchLimits},
+   * so that this buffer may not hold the exact nearest neighbors.
+   */
+  public boolean isApproximate() {
+    return approximate;
+  }
+
+  void markApproximate() {
+    approximate = true;
+  }
+
+  /**
+   * Attaches stats to this buffer, so that queries into it are instrumented.
+   *
+   * @param stats Statistics that queries into this buffer add to, or null to
+   *              stop instrumenting them.
+   */
+  public void setStats(SearchStats stats) {
+    this.stats = stats;
+    lastQuery = null;
+  }
+
+  public SearchStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Counters of the last query into this buffer, or null if that query was not
+   * instrumented.
+   */
+  public SearchStats.Snapshot lastQueryStats() {
+    return lastQuery;
+  }
+
+  void recordStats(SearchStats.Counters counters, long elapsedNanos) {
+    lastQuery = stats.record(counters, elapsedNanos);
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException(String.format("index %d, size %d", i, size));
+    }
+  }
+
+  // Empties the buffer, preparing it to collect the k nearest of the
+  // entries offered to it. The buffer grows as needed.
+  void reset(int k) {
+    this.k = k;
+    lastQuery = null;
+    size = 0;
+    approximate = false;
+  }
+
+  double[] scratch(int length) {
+    if (scratch.length < length) {
+      scratch = new double[length];
+    }
+    return scratch;
+  }
+
+  boolean isFull() {
+    return size == k;
+  }
+
+  // Largest distance in the buffer. Only valid if !isEmpty().
+  double maxDistance() {
+    return distances[0];
+  }
+
+  // Offers an entry. Returns true if it was added.
+  boolean offer(int index, double distance) {
+    if (size < k) {
+      if (size == indices.length) {
+        int capacity = Math.max(16, 2 * size);
+        indices = Arrays.copyOf(indices, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+      }
+      siftUp(size++, index, distance);
+      return true;
+    }
+    if (size == 0 || distance >= distances[0]) {
+      return false;
+    }
+    siftDown(0, size, index, distance);
+    return true;
+  }
+
+  // Flips the signs of the distances. Searches for the farthest points store
+  // negated distances, so that the max-heap keeps the farthest points.
+  void negate() {
+    for (int i = 0; i < size; i++) {
+      distances[i] = -distances[i];
+    }
+  }
+
+  // Heapsort, turning the max-heap into an array sorted by increasing distance.
+  void sort() {
+    for (int n = size - 1; n > 0; n--) {
+      int index = indices[n];
+      double distance = distances[n];
+      indices[n] = indices[0];
+      distances[n] = distances[0];
+      siftDown(0, n, index, distance);
+    }
+  }
+
+  private void siftUp(int i, int index, double distance) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (distances[parent] >= distance) {
+        break;
+      }
+      indices[i] = indices[parent];
+      distances[i] = distances[parent];
+      i = parent;
+    }
+    indices[i] = index;
+    distances[i] = distance;
+  }
+
+  // Sifts (index, distance) down from position i in the heap [0, n).
+  private void siftDown(int i, int n, int index, double distance) {
+    for (int child; (child = 2 * i + 1) < n; i = child) {
+      if (child + 1 < n && distances[child + 1] > distances[child]) {
+        child++;
+      }
+      if (distance >= distances[child]) {
+        break;
+      }
+      indices[i] = indices[child];
+      distances[i] = distances[child];
+    }
+    indices[i] = index;
+    distances[i] = distance;
+  }
+}
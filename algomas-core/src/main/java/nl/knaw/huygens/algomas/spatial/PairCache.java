@@ -0,0 +1,214 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent cache of distances between unordered pairs of points.
+ * <p>
+ * The cache is split into segments, each guarded by its own lock. A segment
+ * holds a fixed number of slots, indexed by an open-addressing hash table,
+ * and evicts using the CLOCK algorithm: lookups set a slot's reference bit,
+ * and the eviction hand clears reference bits until it finds a slot whose
+ * bit is clear.
+ */
+final class PairCache {
+  private static final int MAX_SEGMENTS = 64;
+  // Segments are made no smaller than this, so that CLOCK has some choice.
+  private static final int MIN_SEGMENT_SIZE = 16;
+
+  private final Segment[] segments;
+  private final int shift;
+
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+
+  PairCache(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+    }
+    int n = Integer.highestOneBit(Math.max(1, Math.min(capacity / MIN_SEGMENT_SIZE, MAX_SEGMENTS)));
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      segments[i] = new Segment(capacity / n);
+    }
+    shift = 32 - Integer.numberOfTrailingZeros(n);
+  }
+
+  // Hash of the unordered pair {a, b}.
+  static int hash(Object a, Object b) {
+    return spread(Objects.hashCode(a)) + spread(Objects.hashCode(b));
+  }
+
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private Segment segment(int h) {
+    // Use the high bits for the segment, the low bits within the segment.
+    return shift == 32 ? segments[0] : segments[(h * 0x85ebca6b) >>> shift];
+  }
+
+  /**
+   * Returns the cached distance between a and b, or NaN if it is not cached.
+   */
+  double get(Object a, Object b, int h) {
+    double d = segment(h).get(a, b, h);
+    if (Double.isNaN(d)) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return d;
+  }
+
+  void put(Object a, Object b, int h, double d) {
+    segment(h).put(a, b, h, d);
+  }
+
+  void clear() {
+    for (Segment s : segments) {
+      s.clear();
+    }
+    hits.reset();
+    misses.reset();
+  }
+
+  int size() {
+    int n = 0;
+    for (Segment s : segments) {
+      n += s.size();
+    }
+    return n;
+  }
+
+  private static final class Segment {
+    private final Object[] first;
+    private final Object[] second;
+    private final int[] hashes;
+    private final double[] values;
+    private final boolean[] referenced;
+    // Slot index + 1 for occupied entries, 0 for empty ones. Linear probing.
+    private final int[] table;
+    private final int mask;
+    private int size;
+    private int hand;
+
+    Segment(int capacity) {
+      first = new Object[capacity];
+      second = new Object[capacity];
+      hashes = new int[capacity];
+      values = new double[capacity];
+      referenced = new boolean[capacity];
+      table = new int[Integer.highestOneBit(capacity) << 2];
+      mask = table.length - 1;
+    }
+
+    private boolean matches(int slot, Object a, Object b, int h) {
+      return hashes[slot] == h
+        && (Objects.equals(first[slot], a) && Objects.equals(second[slot], b)
+        || Objects.equals(first[slot], b) && Objects.equals(second[slot], a));
+    }
+
+    // Returns the table index holding {a, b}, or the empty index where it would go.
+    private int find(Object a, Object b, int h) {
+      int i = h & mask;
+      while (table[i] != 0 && !matches(table[i] - 1, a, b, h)) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    synchronized double get(Object a, Object b, int h) {
+      int i = find(a, b, h);
+      if (table[i] == 0) {
+        return Double.NaN;
+      }
+      int slot = table[i] - 1;
+      referenced[slot] = true;
+      return values[slot];
+    }
+
+    synchronized void put(Object a, Object b, int h, double d) {
+      int i = find(a, b, h);
+      if (table[i] != 0) {
+        // Another thread computed the same distance.
+        values[table[i] - 1] = d;
+        return;
+      }
+
+      int slot;
+      if (size < values.length) {
+        slot = size++;
+      } else {
+        while (referenced[hand]) {
+          referenced[hand] = false;
+          hand = (hand + 1) % values.length;
+        }
+        slot = hand;
+        hand = (hand + 1) % values.length;
+        delete(find(first[slot], second[slot], hashes[slot]));
+        i = find(a, b, h);
+      }
+
+      first[slot] = a;
+      second[slot] = b;
+      hashes[slot] = h;
+      values[slot] = d;
+      referenced[slot] = false;
+      table[i] = slot + 1;
+    }
+
+    // Backward-shift deletion (Knuth, TAOCP vol. 3, algorithm 6.4R).
+    private void delete(int i) {
+      for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+        int home = hashes[table[j] - 1] & mask;
+        // Move the entry at j to i unless its home lies cyclically in (i, j].
+        boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+        if (!stays) {
+          table[i] = table[j];
+          i = j;
+        }
+      }
+      table[i] = 0;
+    }
+
+    synchronized void clear() {
+      Arrays.fill(first, null);
+      Arrays.fill(second, null);
+      Arrays.fill(table, 0);
+      Arrays.fill(referenced, false);
+      size = 0;
+      hand = 0;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+  }
+}
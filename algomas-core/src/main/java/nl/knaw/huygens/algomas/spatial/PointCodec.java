@@ -0,0 +1,87 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Binary encoding of points, for storing spatial indexes in files.
+ *
+ * @param <T> The type of points.
+ * @see MappedVPTree
+ */
+public interface PointCodec<T> {
+  byte[] encode(T point);
+
+  /**
+   * Decodes a point from the bytes between buf's position and its limit.
+   * <p>
+   * Implementations may change buf's position, but not its contents.
+   */
+  T decode(ByteBuffer buf);
+
+  /**
+   * Codec for strings, which encodes them as UTF-8.
+   */
+  static PointCodec<String> utf8() {
+    return new PointCodec<String>() {
+      @Override
+      public byte[] encode(String point) {
+        return point.getBytes(UTF_8);
+      }
+
+      @Override
+      public String decode(ByteBuffer buf) {
+        if (buf.hasArray()) {
+          return new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), UTF_8);
+        }
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+      }
+    };
+  }
+
+  /**
+   * Codec for vectors of doubles.
+   */
+  static PointCodec<double[]> doubles() {
+    return new PointCodec<double[]>() {
+      @Override
+      public byte[] encode(double[] point) {
+        ByteBuffer buf = ByteBuffer.allocate(Double.BYTES * point.length);
+        buf.asDoubleBuffer().put(point);
+        return buf.array();
+      }
+
+      @Override
+      public double[] decode(ByteBuffer buf) {
+        double[] point = new double[buf.remaining() / Double.BYTES];
+        buf.asDoubleBuffer().get(point);
+        return point;
+      }
+    };
+  }
+}
@@ -0,0 +1,176 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the work done by an approximate nearest neighbor search.
+ * <p>
+ * SearchLimits trade exactness for speed in three ways:
+ * <ul>
+ * <li>With an epsilon > 0, a search skips any subtree that cannot contain
+ * a point nearer than 1/(1 + epsilon) times the k'th nearest distance found
+ * so far. Each neighbor found is then within a factor (1 + epsilon) of the
+ * distance of the true neighbor of the same rank.</li>
+ * <li>A maximum number of distance computations bounds the work per query.</li>
+ * <li>A timeout bounds the time per query, checked every few distance computations.</li>
+ * </ul>
+ * A search that stops early returns the best neighbors found so far and marks
+ * its result as {@linkplain NeighborBuffer#isApproximate() approximate}.
+ * <p>
+ * SearchLimits are immutable. Start from {@link #NONE} and add limits, e.g.,
+ * {@code SearchLimits.NONE.withEpsilon(.1).withTimeout(5, TimeUnit.MILLISECONDS)}.
+ */
+public final class SearchLimits {
+  /**
+   * No limits: searches are exact.
+   */
+  public static final SearchLimits NONE = new SearchLimits(0, Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final double epsilon;
+  private final long maxDistanceCalls;
+  private final long timeoutNanos;
+
+  private SearchLimits(double epsilon, long maxDistanceCalls, long timeoutNanos) {
+    this.epsilon = epsilon;
+    this.maxDistanceCalls = maxDistanceCalls;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Returns these limits with the given approximation factor.
+   *
+   * @param epsilon Non-negative approximation factor.
+   */
+  public SearchLimits withEpsilon(double epsilon) {
+    if (!(epsilon >= 0)) {
+      throw new IllegalArgumentException("epsilon must be non-negative, got " + epsilon);
+    }
+    return new SearchLimits(epsilon, maxDistanceCalls, timeoutNanos);
+  }
+
+  /**
+   * Returns these limits with the given maximum number of distance computations per query.
+   */
+  public SearchLimits withMaxDistanceCalls(long maxDistanceCalls) {
+    if (maxDistanceCalls < 0) {
+      throw new IllegalArgumentException("maxDistanceCalls must be non-negative, got " + maxDistanceCalls);
+    }
+    return new SearchLimits(epsilon, maxDistanceCalls, timeoutNanos);
+  }
+
+  /**
+   * Returns these limits with the given maximum time per query.
+   */
+  public SearchLimits withTimeout(long timeout, TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must be non-negative, got " + timeout);
+    }
+    return new SearchLimits(epsilon, maxDistanceCalls, unit.toNanos(timeout));
+  }
+
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  public long getMaxDistanceCalls() {
+    return maxDistanceCalls;
+  }
+
+  public long getTimeout(TimeUnit unit) {
+    return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  boolean isExact() {
+    return epsilon == 0 && maxDistanceCalls == Long.MAX_VALUE && timeoutNanos == Long.MAX_VALUE;
+  }
+
+  Budget start() {
+    return new Budget(this);
+  }
+
+  // The state of a single search under these limits.
+  static final class Budget {
+    // Check the clock once every this many distance computations.
+    private static final int CLOCK_INTERVAL = 16;
+
+    private final double shrink;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private long callsLeft;
+    private boolean exhausted;
+    private boolean approximate;
+    final SearchStats.Counters counters = new SearchStats.Counters();
+
+    private Budget(SearchLimits limits) {
+      shrink = 1 / (1 + limits.epsilon);
+      callsLeft = limits.maxDistanceCalls;
+      hasDeadline = limits.timeoutNanos != Long.MAX_VALUE;
+      deadline = hasDeadline ? System.nanoTime() + limits.timeoutNanos : 0;
+    }
+
+    // Takes one distance computation from the budget. Returns false if the
+    // budget is exhausted, after which the search should stop.
+    boolean spend() {
+      if (exhausted) {
+        return false;
+      }
+      // The clock is read on the first call and every CLOCK_INTERVAL calls after.
+      if (callsLeft == 0
+          || hasDeadline && counters.distanceCalls % CLOCK_INTERVAL == 0 && System.nanoTime() - deadline >= 0) {
+        exhausted = true;
+        approximate = true;
+        return false;
+      }
+      callsLeft--;
+      counters.distanceCalls++;
+      return true;
+    }
+
+    boolean isExhausted() {
+      return exhausted;
+    }
+
+    // Decides whether to visit a subtree or point at lower bound distance
+    // bound from the query point, given the current search radius. The radius
+    // is only shrunk by epsilon once the result is full: before that, it is
+    // the caller's range limit rather than a k'th nearest distance.
+    boolean visit(double bound, double radius, boolean full) {
+      if (!(bound <= radius)) {
+        counters.pruned++;
+        return false;
+      }
+      if (full && bound > radius * shrink) {
+        counters.pruned++;
+        approximate = true;
+        return false;
+      }
+      return true;
+    }
+
+    boolean isApproximate() {
+      return approximate;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the work done by neighbor queries.
+ * <p>
+ * To instrument queries, attach a SearchStats to the buffer that receives
+ * their results, using {@link NeighborBuffer#setStats(SearchStats)} or
+ * {@link IntNeighborBuffer#setStats(SearchStats)}. Every query into that buffer
+ * then adds its counters to the SearchStats, and leaves them in the buffer
+ * for inspection. Queries into buffers without SearchStats are not instrumented
+ * and pay nothing for this facility.
+ * <p>
+ * A SearchStats may be shared by buffers in different threads.
+ */
+public final class SearchStats {
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder nodesVisited = new LongAdder();
+  private final LongAdder distanceCalls = new LongAdder();
+  private final LongAdder pruned = new LongAdder();
+  private final LongAdder heapUpdates = new LongAdder();
+  private final LongAdder elapsedNanos = new LongAdder();
+
+  /**
+   * Returns the totals of the queries recorded so far.
+   * <p>
+   * If queries are being recorded concurrently, the counters may not all
+   * cover the same set of queries.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(queries.sum(), nodesVisited.sum(), distanceCalls.sum(), pruned.sum(),
+      heapUpdates.sum(), elapsedNanos.sum());
+  }
+
+  /**
+   * Sets all counters to zero.
+   */
+  public void reset() {
+    queries.reset();
+    nodesVisited.reset();
+    distanceCalls.reset();
+    pruned.reset();
+    heapUpdates.reset();
+    elapsedNanos.reset();
+  }
+
+  // Adds the counters of a single query and returns them as a Snapshot.
+  Snapshot record(Counters counters, long elapsed) {
+    queries.increment();
+    nodesVisited.add(counters.nodesVisited);
+    distanceCalls.add(counters.distanceCalls);
+    pruned.add(counters.pruned);
+    heapUpdates.add(counters.heapUpdates);
+    elapsedNanos.add(elapsed);
+    return new Snapshot(1, counters.nodesVisited, counters.distanceCalls, counters.pruned,
+      counters.heapUpdates, elapsed);
+  }
+
+  // Counters for a single query.
+  static final class Counters {
+    long nodesVisited;
+    long distanceCalls;
+    long pruned;
+    long heapUpdates;
+  }
+
+  /**
+   * Immutable copy of the counters of one or more queries.
+   */
+  public static final class Snapshot {
+    private final long queries;
+    private final long nodesVisited;
+    private final long distanceCalls;
+    private final long pruned;
+    private final long heapUpdates;
+    private final long elapsedNanos;
+
+    Snapshot(long queries, long nodesVisited, long distanceCalls, long pruned, long heapUpdates,
+             long elapsedNanos) {
+      this.queries = queries;
+      this.nodesVisited = nodesVisited;
+      this.distanceCalls = distanceCalls;
+      this.pruned = pruned;
+      this.heapUpdates = heapUpdates;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Number of queries.
+     */
+    public long getQueries() {
+      return queries;
+    }
+
+    /**
+     * Number of tree nodes (including points in leaf buckets) that were visited.
+     */
+    public long getNodesVisited() {
+      return nodesVisited;
+    }
+
+    /**
+     * Number of calls to the metric.
+     */
+    public long getDistanceCalls() {
+      return distanceCalls;
+    }
+
+    /**
+     * Number of subtrees and leaf points skipped because they could not hold
+     * a neighbor.
+     */
+    public long getPruned() {
+      return pruned;
+    }
+
+    /**
+     * Number of times a neighbor was added to the result buffer.
+     */
+    public long getHeapUpdates() {
+      return heapUpdates;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Fraction of the subtrees and points considered that were pruned,
+     * or zero if none were considered.
+     */
+    public double pruneRatio() {
+      long considered = pruned + nodesVisited;
+      return considered == 0 ? 0 : (double) pruned / considered;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "queries=%d, nodesVisited=%d, distanceCalls=%d, pruned=%d, heapUpdates=%d, elapsedNanos=%d",
+        queries, nodesVisited, distanceCalls, pruned, heapUpdates, elapsedNanos);
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A forest of independently built VP-trees, queried as one index.
+ * <p>
+ * A ShardedVPTree partitions its points into shards, each indexed by its own
+ * {@link VPTree}. The shards are constructed concurrently, and a shard can be
+ * rebuilt on its own, e.g., when its points change or to spread the cost of
+ * constructing a large index over time. Each construction only needs the
+ * points of one shard in memory.
+ * <p>
+ * Queries search all shards in parallel and merge their results. The shards
+ * share the k'th nearest distance found so far, so that shards searched later
+ * prune with the neighbors found in earlier ones.
+ * <p>
+ * Queries may run concurrently with each other and with
+ * {@link #rebuildShard(int, Iterable)}; a query sees each shard either
+ * before or after a rebuild.
+ *
+ * @param <T> The type of points.
+ */
+public final class ShardedVPTree<T> {
+  private final Metric<T> metric;
+  private final ForkJoinPool pool;
+  private final AtomicReferenceArray<VPTree<T>> shards;
+
+  /**
+   * Constructs a ShardedVPTree with the given shards, in the common ForkJoinPool.
+   *
+   * @param metric Metric (distance function).
+   * @param shards Points for each shard.
+   */
+  public ShardedVPTree(Metric<T> metric, List<? extends Iterable<T>> shards) {
+    this(metric, shards, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructs a ShardedVPTree with the given shards.
+   *
+   * @param metric Metric (distance function).
+   * @param shards Points for each shard.
+   * @param pool   Pool to construct and query the shards in.
+   */
+  public ShardedVPTree(Metric<T> metric, List<? extends Iterable<T>> shards, ForkJoinPool pool) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("need at least one shard");
+    }
+    this.metric = metric;
+    this.pool = pool;
+    this.shards = new AtomicReferenceArray<>(shards.size());
+    List<ForkJoinTask<?>> tasks = IntStream.range(0, shards.size())
+      .mapToObj(i -> ForkJoinTask.adapt(() -> this.shards.set(i, build(shards.get(i)))))
+      .collect(toList());
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+  }
+
+  /**
+   * Constructs a ShardedVPTree by dealing the given points round-robin over
+   * nShards shards, in the common ForkJoinPool.
+   *
+   * @param metric  Metric (distance function).
+   * @param points  Points to store in the tree.
+   * @param nShards Number of shards.
+   */
+  public static <T> ShardedVPTree<T> partition(Metric<T> metric, Iterable<T> points, int nShards) {
+    if (nShards < 1) {
+      throw new IllegalArgumentException("nShards must be positive, got " + nShards);
+    }
+    List<List<T>> shards = new ArrayList<>(nShards);
+    for (int i = 0; i < nShards; i++) {
+      shards.add(new ArrayList<>());
+    }
+    int i = 0;
+    for (T p : points) {
+      shards.get(i).add(p);
+      i = (i + 1) % nShards;
+    }
+    return new ShardedVPTree<>(metric, shards);
+  }
+
+  private VPTree<T> build(Iterable<T> points) {
+    return VPTree.builder(metric).pool(pool).build(points);
+  }
+
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  public int shardCount() {
+    return shards.length();
+  }
+
+  /**
+   * Returns the tree that currently indexes shard i.
+   */
+  public VPTree<T> shard(int i) {
+    return shards.get(i);
+  }
+
+  /**
+   * Replaces the points of shard i, building a new tree for them.
+   * <p>
+   * Queries keep using the old tree until the new one is complete.
+   */
+  public void rebuildShard(int i, Iterable<T> points) {
+    VPTree<T> tree = pool.invoke(ForkJoinTask.adapt(() -> build(points)));
+    shards.set(i, tree);
+  }
+
+  public int size() {
+    int n = 0;
+    for (int i = 0; i < shards.length(); i++) {
+      n += shards.get(i).size();
+    }
+    return n;
+  }
+
+  /**
+   * A stream containing all points in all shards.
+   */
+  public Stream<T> stream() {
+    return IntStream.range(0, shards.length()).mapToObj(shards::get).flatMap(VPTree::stream);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k     Number of neighbors to collect.
+   * @param point Query point.
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, T point) {
+    return nearestNeighbors(k, Double.POSITIVE_INFINITY, point, x -> true);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   */
+  public Stream<VPTree.Entry<T>> nearestNeighbors(int k, double radius, T point,
+                                                  Predicate<? super T> predicate) {
+    if (k <= 0) {
+      return Stream.empty();
+    }
+
+    AtomicLong bound = new AtomicLong(Double.doubleToLongBits(radius));
+    int n = shards.length();
+    List<VPTree<T>> trees = new ArrayList<>(n);
+    List<NeighborBuffer> results = new ArrayList<>(n);
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      VPTree<T> tree = shards.get(i);
+      NeighborBuffer result = new NeighborBuffer();
+      trees.add(tree);
+      results.add(result);
+      tasks.add(ForkJoinTask.adapt(() -> tree.parallelSearch(k, point, j -> predicate.test(tree.get(j)),
+        result, bound, VPTree.PARALLEL_THRESHOLD)));
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+    // Each shard returns its k nearest within the radius it saw, which may be
+    // more than the final shared radius.
+    List<VPTree.Entry<T>> merged = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      NeighborBuffer result = results.get(i);
+      for (int j = 0; j < result.size(); j++) {
+        merged.add(new VPTree.Entry<>(trees.get(i).get(result.index(j)), result.distance(j)));
+      }
+    }
+    return merged.stream().sorted(Comparator.comparingDouble(e -> e.distance)).limit(k);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param point  Query point.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   */
+  public Stream<VPTree.Entry<T>> withinRadius(T point, double radius) {
+    return nearestNeighbors(Integer.MAX_VALUE, radius, point, x -> true);
+  }
+}
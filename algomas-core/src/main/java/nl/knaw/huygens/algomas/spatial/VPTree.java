@@ -26,26 +26,37 @@ import nl.knaw.huygens.algomas.stat.RandomGen;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.sqrt;
-import static java.util.Collections.reverseOrder;
-import static java.util.Comparator.comparing;
 import static java.util.stream.IntStream.range;
 
 /**
@@ -58,34 +69,55 @@ import static java.util.stream.IntStream.range;
  * @param <T> The type of points.
  */
 public final class VPTree<T> implements Iterable<T>, Serializable {
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 6L;
 
-  // Construction algorithm.
+  // Number of ancestor vantage points in the pivot table of a leaf.
+  private static final int MAX_PIVOTS = 8;
+
+  // Default subtree size below which construction is sequential.
+  private static final int SEQUENTIAL_CUTOFF = 1 << 10;
+
+  // Construction algorithm. Fills the subtree that occupies the slots
+  // [offset, offset + points.size()) of the node arrays. Subtrees of fewer
+  // than cutoff points are constructed sequentially, in the current thread.
   @SuppressWarnings("serial")
-  private final class ConstructTask extends RecursiveTask<Node<T>> {
+  private final class ConstructTask extends RecursiveAction {
     private double[] dist;
     private List<T> points;
+    private final int offset;
+    // Vantage points above this subtree, or null if there is no pivot table.
+    private final Ancestor<T> ancestors;
+    private final int cutoff;
     final SplittableRandom rnd;
 
-    public ConstructTask(SplittableRandom rnd, List<T> points) {
+    public ConstructTask(SplittableRandom rnd, List<T> points, int offset, Ancestor<T> ancestors,
+                         int cutoff) {
       super();
       this.points = points;
+      this.offset = offset;
+      this.ancestors = ancestors;
+      this.cutoff = cutoff;
       this.rnd = rnd;
     }
 
     @Override
-    protected final Node<T> compute() {
+    protected final void compute() {
       int nPoints = points.size();
       if (nPoints == 0) {
-        return null;
+        return;
+      }
+
+      if (nPoints <= bucketSize) {
+        for (int i = 0; i < nPoints; i++) {
+          leaf(offset + i, points.get(i), ancestors);
+        }
+        return;
       }
 
       dist = new double[nPoints - 1];
 
       // Coarsened base cases.
       switch (nPoints) {
-        case 1:
-          return singleton(points.get(0));
         case 2:
           T vantage;
           T other;
@@ -96,35 +128,64 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
             vantage = points.get(1);
             other = points.get(0);
           }
-          return new Node<>(vantage, metric.distance(vantage, other),
-            singleton(other), null);
+          double d = metric.distance(vantage, other);
+          node(offset, vantage, d, offset + 2);
+          bounds(offset, d, d, Double.NaN);
+          leaf(offset + 1, other, below(vantage));
+          return;
         case 3:
-          return construct3();
+          construct3();
+          return;
         default:
       }
 
-      T vantagePoint = selectVantage();
-
-      range(0, points.size())
-        .parallel()
-        .forEach(i -> dist[i] = metric.distance(points.get(i), vantagePoint));
+      boolean parallel = nPoints >= cutoff;
+      T vantagePoint = selectVantage(parallel);
+      distances(vantagePoint, points, 0, points.size(), parallel);
 
       int medianIndex = selectMedian();
       double medianDistance = dist[medianIndex];
+
+      int outsideOffset = offset + 1 + medianIndex;
+      node(offset, vantagePoint, medianDistance, outsideOffset);
+      bounds(offset,
+        Arrays.stream(dist, 0, medianIndex).min().getAsDouble(),
+        Arrays.stream(dist, 0, medianIndex).max().getAsDouble(),
+        Arrays.stream(dist, medianIndex, dist.length).max().getAsDouble());
       dist = null;
 
+      Ancestor<T> below = below(vantagePoint);
       ConstructTask left = new ConstructTask(rnd.split(),
-        points.subList(0, medianIndex));
+        points.subList(0, medianIndex), offset + 1, below, cutoff);
+      ConstructTask right = new ConstructTask(rnd, points.subList(medianIndex, points.size()),
+        outsideOffset, below, cutoff);
+      if (!parallel) {
+        left.compute();
+        right.compute();
+        return;
+      }
       left.fork();
-      Node<T> outside = new ConstructTask(rnd,
-        points.subList(medianIndex, points.size())).compute();
-      Node<T> inside = left.tryUnfork() ? left.compute() : left.join();
+      right.compute();
+      if (left.tryUnfork()) {
+        left.compute();
+      } else {
+        left.join();
+      }
+    }
 
-      return new Node<>(vantagePoint, medianDistance, inside, outside);
+    // Sets dist[i] to the distance between vantage and from.get(i), for i in [start, end).
+    private void distances(T vantage, List<T> from, int start, int end, boolean parallel) {
+      if (parallel) {
+        range(start, end).parallel().forEach(i -> dist[i] = metric.distance(from.get(i), vantage));
+        return;
+      }
+      for (int i = start; i < end; i++) {
+        dist[i] = metric.distance(from.get(i), vantage);
+      }
     }
 
     // Brute-force specialization of construct() for points.size() == 3.
-    private Node<T> construct3() {
+    private void construct3() {
       T p0 = points.get(0);
       T p1 = points.get(1);
       T p2 = points.get(2);
@@ -149,10 +210,12 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
         bestIndex = 2;
       }
 
+      // dist must line up with points after the vantage point has been
+      // replaced by points[2] below.
       switch (bestIndex) {
         case 0:
-          dist[0] = d01;
-          dist[1] = d02;
+          dist[0] = d02;
+          dist[1] = d01;
           break;
         case 1:
           dist[0] = d01;
@@ -171,8 +234,11 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
         swap(0, 1);
       }
 
-      return new Node<>(vantagePoint, dist[0], singleton(points.get(0)),
-        singleton(points.get(1)));
+      node(offset, vantagePoint, dist[0], offset + 2);
+      bounds(offset, dist[0], dist[0], dist[1]);
+      Ancestor<T> below = below(vantagePoint);
+      leaf(offset + 1, points.get(0), below);
+      leaf(offset + 2, points.get(1), below);
     }
 
     // Quickselect. Points has been shuffled (by selectVantage) before
@@ -217,7 +283,7 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
     }
 
     // Selects and removes a vantage point from points.
-    private T selectVantage() {
+    private T selectVantage(boolean parallel) {
       // The first sampleSize points are the candidates. Taking ~sqrt(N)
       // as the sample size ensures that we make a linear number of
       // distance comparisons.
@@ -235,9 +301,7 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
         int start = i * sampleSize;
         int end = (i + 1) * sampleSize;
 
-        range(start, end)
-          .parallel()
-          .forEach(j -> dist[j] = metric.distance(rest.get(j), candidate));
+        distances(candidate, rest, start, end, parallel);
 
         double mean = Arrays.stream(dist, start, end).average().getAsDouble();
         // spread = mean absolute deviation.
@@ -256,8 +320,51 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
       return vantagePoint;
     }
 
-    private Node<T> singleton(T point) {
-      return new Node<>(point, Double.NaN, null, null);
+    private void node(int i, T center, double radius, int outsideStart) {
+      centers[i] = center;
+      radii[i] = radius;
+      outside[i] = outsideStart;
+    }
+
+    private void bounds(int i, double insideMinimum, double insideMaximum, double outsideMaximum) {
+      insideMin[i] = insideMinimum;
+      insideMax[i] = insideMaximum;
+      outsideMax[i] = outsideMaximum;
+    }
+
+    private Ancestor<T> below(T vantagePoint) {
+      if (pivotDist == null) {
+        return null;
+      }
+      return new Ancestor<>(vantagePoint, ancestors);
+    }
+
+    // Stores a point as a leaf and, if required, its row in the pivot table.
+    private void leaf(int i, T point, Ancestor<T> ancestors) {
+      node(i, point, Double.NaN, i + 1);
+      if (pivotDist == null) {
+        return;
+      }
+      int a = 0;
+      for (Ancestor<T> anc = ancestors; anc != null && a < MAX_PIVOTS; anc = anc.parent, a++) {
+        pivotDist[i * MAX_PIVOTS + a] = metric.distance(point, anc.vantage);
+      }
+      if (ancestors != null) {
+        height.accumulateAndGet(ancestors.depth, Math::max);
+      }
+    }
+  }
+
+  // Linked list of the vantage points above a subtree, nearest first.
+  private static final class Ancestor<T> {
+    final T vantage;
+    final Ancestor<T> parent;
+    final int depth; // Length of the list.
+
+    Ancestor(T vantage, Ancestor<T> parent) {
+      this.vantage = vantage;
+      this.parent = parent;
+      depth = parent == null ? 1 : parent.depth + 1;
     }
   }
 
@@ -283,24 +390,52 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
     }
   }
 
-  private static final class Node<T> implements Serializable {
-    private static final long serialVersionUID = 1L;
-
-    final T center;
-    final double radius;
-    final Node<T> inside;
-    final Node<T> outside;
-
-    Node(T point, double radius, Node<T> inside, Node<T> outside) {
-      center = point;
-      this.radius = radius;
-      this.inside = inside;
-      this.outside = outside;
-    }
-  }
-
   private final Metric<T> metric;
-  private final Node<T> root;
+  // metric, if it is a BoundedMetric.
+  private final BoundedMetric<T> bounded;
+
+  // The tree is stored in parallel arrays, one slot per node, with the nodes
+  // laid out in depth-first preorder. Every subtree therefore occupies a
+  // contiguous range [lo, hi) of slots: its root is at lo, the inside subtree
+  // at [lo + 1, outside[lo]) and the outside subtree at [outside[lo], hi).
+  // Either range may be empty.
+  //
+  // The distances from the center of internal node i to the points in its
+  // inside subtree lie in [insideMin[i], insideMax[i]], and those to the points
+  // in its outside subtree in [radii[i], outsideMax[i]]. outsideMax is NaN
+  // if the outside subtree is empty.
+  //
+  // Leaves have radius NaN. A leaf bucket holding the points in [lo, hi) is
+  // stored as a chain of leaves, each the outside subtree of the previous one.
+  // Each leaf in a tree with buckets has a row in the pivot table pivotDist,
+  // holding its distances to up to MAX_PIVOTS of its nearest ancestors' centers
+  // (nearest first, NaN if there are fewer ancestors). Rows are indexed by
+  // slot, so internal nodes' rows go unused and the table limits trees with
+  // buckets to (2^31 - 8) / MAX_PIVOTS points. height is the maximum number of
+  // ancestors of a leaf.
+  private final Object[] centers;
+  private final double[] radii;
+  private final int[] outside;
+  private final double[] insideMin;
+  private final double[] insideMax;
+  private final double[] outsideMax;
+  private final int bucketSize;
+  private final double[] pivotDist;
+  private final AtomicInteger height = new AtomicInteger();
+
+  // Attributes of the points, for filtered search, or null if the tree was
+  // built without them: categories[i] and keys[i] belong to the point in slot
+  // i, subtreeCategories[i] is the union of the categories in the subtree
+  // rooted at i and [subtreeKeyMin[i], subtreeKeyMax[i]] is its key range.
+  // The subtree rooted at a leaf is the rest of its bucket.
+  private final long[] categories;
+  private final long[] subtreeCategories;
+  private final double[] keys;
+  private final double[] subtreeKeyMin;
+  private final double[] subtreeKeyMax;
+
+  // Cached k-nearest neighbor radii for reverse neighbor queries, by k.
+  private transient Map<Integer, ReverseRadii> reverseRadii;
 
   public VPTree(Metric<T> metric, Iterable<T> points) {
     this(metric, points, new SplittableRandom());
@@ -318,80 +453,271 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
   }
 
   public VPTree(Metric<T> metric, Stream<T> points, SplittableRandom rnd) {
-    this.metric = metric;
-    root = ForkJoinPool.commonPool()
-                       .invoke(new ConstructTask(rnd, points.collect(Collectors.toList())));
+    this(metric, points, rnd, 1);
   }
 
-  public Metric<T> getMetric() {
-    return metric;
+  /**
+   * Construct VPTree from given points, with leaf buckets.
+   * <p>
+   * The leaves of the tree store up to bucketSize points, together with their
+   * distances to the vantage points of their nearest ancestors. Searches use
+   * these distances to rule out many leaf points by the triangle inequality,
+   * without computing their distance to the query point. That saves time when
+   * the metric is expensive, at the cost of some more memory and distance
+   * computations during construction.
+   *
+   * @param metric     Metric (distance function).
+   * @param points     Collection of points to store in the tree.
+   * @param rnd        Random number generator.
+   * @param bucketSize Maximum number of points per leaf. With bucketSize 1,
+   *                   the tree has no pivot table. Otherwise, the tree can
+   *                   hold at most about 268 million points.
+   */
+  public VPTree(Metric<T> metric, Iterable<T> points, SplittableRandom rnd, int bucketSize) {
+    this(metric, StreamSupport.stream(points.spliterator(), false), rnd, bucketSize);
   }
 
-  public boolean isEmpty() {
-    return root == null;
+  public VPTree(Metric<T> metric, Stream<T> points, SplittableRandom rnd, int bucketSize) {
+    this(metric, points, rnd, bucketSize, ForkJoinPool.commonPool(), SEQUENTIAL_CUTOFF, null, null);
   }
 
-  @Override
-  public Iterator<T> iterator() {
-    return stream().iterator();
+  // Constructs the tree in pool, or sequentially if pool is null. category and
+  // key give the attributes of the points, or are null.
+  @SuppressWarnings("unchecked")
+  private VPTree(Metric<T> metric, Stream<T> points, SplittableRandom rnd, int bucketSize,
+                 ForkJoinPool pool, int cutoff, ToLongFunction<? super T> category,
+                 ToDoubleFunction<? super T> key) {
+    if (bucketSize < 1) {
+      throw new IllegalArgumentException("bucketSize must be positive, got " + bucketSize);
+    }
+    this.metric = metric;
+    this.bounded = metric instanceof BoundedMetric ? (BoundedMetric<T>) metric : null;
+    this.bucketSize = bucketSize;
+    List<T> list = points.collect(Collectors.toList());
+    int n = list.size();
+    centers = new Object[n];
+    radii = new double[n];
+    outside = new int[n];
+    insideMin = new double[n];
+    insideMax = new double[n];
+    outsideMax = new double[n];
+    if (bucketSize == 1) {
+      pivotDist = null;
+    } else {
+      if ((long) n * MAX_PIVOTS > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException("too many points for a VPTree with buckets: " + n);
+      }
+      pivotDist = new double[n * MAX_PIVOTS];
+      Arrays.fill(pivotDist, Double.NaN);
+    }
+    if (pool == null) {
+      new ConstructTask(rnd, list, 0, null, Integer.MAX_VALUE).compute();
+    } else {
+      pool.invoke(new ConstructTask(rnd, list, 0, null, cutoff));
+    }
+
+    if (category == null) {
+      categories = null;
+      subtreeCategories = null;
+    } else {
+      categories = new long[n];
+      subtreeCategories = new long[n];
+      for (int i = 0; i < n; i++) {
+        categories[i] = category.applyAsLong(get(i));
+      }
+    }
+    if (key == null) {
+      keys = null;
+      subtreeKeyMin = null;
+      subtreeKeyMax = null;
+    } else {
+      keys = new double[n];
+      subtreeKeyMin = new double[n];
+      subtreeKeyMax = new double[n];
+      for (int i = 0; i < n; i++) {
+        keys[i] = key.applyAsDouble(get(i));
+        if (Double.isNaN(keys[i])) {
+          throw new IllegalArgumentException("key is NaN for " + get(i));
+        }
+      }
+    }
+    if (category != null || key != null) {
+      summarize(0, n);
+    }
   }
 
-  private static class SpliteratorImpl<T> implements Spliterator<T> {
-    // Queue of nodes still to be traversed. Since we push higher nodes
-    // before lower ones, FIFO order should correspond roughly to ordering
-    // by size.
-    private ArrayDeque<Node<T>> nodes = new ArrayDeque<>();
-    private int size;
+  // Fills in the attribute summaries of the subtree [lo, hi).
+  private void summarize(int lo, int hi) {
+    if (lo >= hi) {
+      return;
+    }
+    int mid = outside[lo];
+    summarize(lo + 1, mid);
+    summarize(mid, hi);
+    if (categories != null) {
+      long union = categories[lo];
+      if (lo + 1 < mid) {
+        union |= subtreeCategories[lo + 1];
+      }
+      if (mid < hi) {
+        union |= subtreeCategories[mid];
+      }
+      subtreeCategories[lo] = union;
+    }
+    if (keys != null) {
+      double min = keys[lo];
+      double max = keys[lo];
+      if (lo + 1 < mid) {
+        min = Math.min(min, subtreeKeyMin[lo + 1]);
+        max = Math.max(max, subtreeKeyMax[lo + 1]);
+      }
+      if (mid < hi) {
+        min = Math.min(min, subtreeKeyMin[mid]);
+        max = Math.max(max, subtreeKeyMax[mid]);
+      }
+      subtreeKeyMin[lo] = min;
+      subtreeKeyMax[lo] = max;
+    }
+  }
+
+  /**
+   * Returns a builder for VPTrees with the given metric.
+   * <p>
+   * The builder offers control over construction that the constructors lack:
+   * the pool to construct in, or sequential construction in the calling thread,
+   * and a random seed for reproducible trees.
+   */
+  public static <T> Builder<T> builder(Metric<T> metric) {
+    return new Builder<>(metric);
+  }
+
+  /**
+   * Builder for VPTrees.
+   * <p>
+   * By default, trees are constructed in the common ForkJoinPool, without
+   * buckets or attributes and with a random seed.
+   *
+   * @param <T> The type of points.
+   */
+  public static final class Builder<T> {
+    private final Metric<T> metric;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int cutoff = SEQUENTIAL_CUTOFF;
+    private int bucketSize = 1;
+    private boolean seeded = false;
+    private long seed;
+    private ToLongFunction<? super T> category;
+    private ToDoubleFunction<? super T> key;
+
+    private Builder(Metric<T> metric) {
+      this.metric = metric;
+    }
 
-    private SpliteratorImpl(Node<T> node, int size) {
-      nodes.addLast(node);
-      this.size = (node.inside == null && node.outside == null) ? 1 : size;
+    /**
+     * Construct trees in the given pool.
+     */
+    public Builder<T> pool(ForkJoinPool pool) {
+      this.pool = Objects.requireNonNull(pool);
+      return this;
     }
 
-    @Override
-    public boolean tryAdvance(Consumer<? super T> action) {
-      if (nodes.isEmpty()) {
-        return false;
-      }
-      Node<T> top = nodes.removeFirst();
-      action.accept(top.center);
-      push(top.inside);
-      push(top.outside);
-      size--;
-      return true;
+    /**
+     * Construct trees sequentially, in the thread that calls {@link #build}.
+     */
+    public Builder<T> sequential() {
+      pool = null;
+      return this;
     }
 
-    private void push(Node<T> node) {
-      if (node != null) {
-        nodes.addLast(node);
+    /**
+     * Construct subtrees of fewer than cutoff points sequentially, as a
+     * single ForkJoin task. Larger cutoffs mean less overhead but coarser
+     * load balancing.
+     */
+    public Builder<T> sequentialCutoff(int cutoff) {
+      if (cutoff < 1) {
+        throw new IllegalArgumentException("cutoff must be positive, got " + cutoff);
       }
+      this.cutoff = cutoff;
+      return this;
     }
 
-    @Override
-    public Spliterator<T> trySplit() {
-      if (nodes.isEmpty()) {
-        return null;
+    /**
+     * Seed the random number generator, so that every tree built from the same
+     * points in the same order has the same structure, regardless of the pool.
+     */
+    public Builder<T> seed(long seed) {
+      this.seed = seed;
+      seeded = true;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of points per leaf.
+     * <p>
+     * With bucketSize > 1, the tree keeps a pivot table of eight doubles per
+     * point, so it can hold at most about 268 million (2^31 / 8) points;
+     * building a larger tree throws an IllegalArgumentException.
+     *
+     * @see VPTree#VPTree(Metric, Iterable, SplittableRandom, int)
+     */
+    public Builder<T> bucketSize(int bucketSize) {
+      if (bucketSize < 1) {
+        throw new IllegalArgumentException("bucketSize must be positive, got " + bucketSize);
       }
-      // Assume that about half the elements are in the first node on the queue.
-      Spliterator<T> left = new SpliteratorImpl<>(nodes.removeFirst(), size / 2);
-      size -= size / 2;
-      return left;
+      this.bucketSize = bucketSize;
+      return this;
     }
 
-    @Override
-    public long estimateSize() {
-      return size;
+    /**
+     * Record the categories of the points, for filtered search. category maps
+     * each point to the set of its categories, encoded as a bitmask.
+     *
+     * @see AttributeFilter
+     */
+    public Builder<T> categories(ToLongFunction<? super T> category) {
+      this.category = Objects.requireNonNull(category);
+      return this;
     }
 
-    @Override
-    public int characteristics() {
-      return SIZED | SUBSIZED;
+    /**
+     * Record a numeric key for each point, e.g., a date, for filtered search.
+     * Keys must not be NaN.
+     *
+     * @see AttributeFilter
+     */
+    public Builder<T> key(ToDoubleFunction<? super T> key) {
+      this.key = Objects.requireNonNull(key);
+      return this;
+    }
+
+    public VPTree<T> build(Iterable<T> points) {
+      return build(StreamSupport.stream(points.spliterator(), false));
+    }
+
+    public VPTree<T> build(Stream<T> points) {
+      SplittableRandom rnd = seeded ? new SplittableRandom(seed) : new SplittableRandom();
+      return new VPTree<>(metric, points, rnd, bucketSize, pool, cutoff, category, key);
     }
   }
 
+  public Metric<T> getMetric() {
+    return metric;
+  }
+
+  public boolean isEmpty() {
+    return centers.length == 0;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return stream().iterator();
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   public Spliterator<T> spliterator() {
-    return new SpliteratorImpl<>(root, size());
+    return (Spliterator<T>) Spliterators.spliterator(centers, Spliterator.IMMUTABLE);
   }
 
   /**
@@ -453,86 +779,1841 @@ public final class VPTree<T> implements Iterable<T>, Serializable {
    * @param predicate Predicate that returned points must satisfy.
    */
   public final Stream<Entry<T>> nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate) {
-    // Max priority queue sorted on distance from query point.
-    Comparator<Entry<T>> byDistance = comparing(e -> e.distance);
-    PriorityQueue<Entry<T>> nearest = new PriorityQueue<>(k + 1, reverseOrder(byDistance));
-    search(root, k, point, radius, predicate, nearest);
-    return nearest.stream();
+    NeighborBuffer nearest = new NeighborBuffer(Math.max(0, Math.min(k, size())));
+    nearestNeighbors(k, radius, point, predicate, nearest);
+    return entries(nearest);
   }
 
   /**
-   * Finds all points within the given radius of the given point.
+   * Finds the k nearest neighbors of the given point.
    * <p>
-   * Returns a stream of entries containing neighbor points and their distance
-   * from the query point.
+   * Stores the indices of the neighbors and their distances from the query point
+   * in result, sorted by increasing distance. The neighbors can be retrieved using
+   * {@link #get(int)}. Once result has grown to hold k neighbors, this method does
+   * not allocate memory.
    *
-   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @param k      Number of neighbors to collect.
    * @param point  Query point.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
    */
-  public Stream<Entry<T>> withinRadius(T point, double radius) {
-    return withinRadius(point, radius, x -> true);
+  public final void nearestNeighbors(int k, T point, NeighborBuffer result) {
+    searchIndices(k, Double.POSITIVE_INFINITY, point, ALL, result);
   }
 
   /**
-   * Finds all points within the given radius of the given point that satisfy a predicate.
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
    * <p>
-   * Returns a stream of entries containing neighbor points and their distance
-   * from the query point.
+   * Stores the indices of the neighbors and their distances from the query point
+   * in result, sorted by increasing distance. The neighbors can be retrieved using
+   * {@link #get(int)}. Once result has grown to hold k neighbors, this method does
+   * not allocate memory.
    *
+   * @param k         Number of neighbors to collect.
    * @param radius    Neighbors must be at distance <= radius from the query point.
    * @param point     Query point.
    * @param predicate Predicate that returned points must satisfy.
+   * @param result    Buffer that receives the neighbors. Its previous contents are discarded.
    */
-  public Stream<Entry<T>> withinRadius(T point, double radius, Predicate<? super T> predicate) {
-    Queue<Entry<T>> result = new ArrayDeque<>();
-    search(root, size(), point, radius, predicate, result);
-    return result.stream();
-  }
-
-  // Branch-and-bound search algorithm. Fills the Queue result with at most k points
-  // that live within radius of point and satisfy the predicate. If result is a
-  // priority queue ordered on distance, these k points will be the k nearest neighbors
-  // of point within the set of points that satisfy the predicate.
-  private double search(Node<T> n, int k, T point, double radius, Predicate<? super T> predicate,
-                        Queue<Entry<T>> result) {
-    if (n == null) {
-      return radius;
+  public final void nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate,
+                                     NeighborBuffer result) {
+    searchIndices(k, radius, point, accept(predicate), result);
+  }
+
+  // Finds the k nearest neighbors of point within radius, among the points whose
+  // indices are accepted.
+  void searchIndices(int k, double radius, T point, IntPredicate accept, NeighborBuffer result) {
+    if (result.getStats() != null) {
+      searchIndices(k, radius, point, accept, SearchLimits.NONE, result);
+      return;
     }
+    result.reset(k);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    search(0, centers.length, 0, point, radius, accept, result, path);
+    result.sort();
+  }
 
-    double d = metric.distance(point, n.center);
-    if (d <= radius && predicate.test(n.center)) {
-      result.offer(new Entry<>(n.center, d));
-      if (result.size() > k) {
-        result.poll();
-      }
-      if (result.size() == k) {
-        radius = result.peek().distance;
-      }
+  // Receives the distances computed by a search, see searchIndices below.
+  interface DistanceSink {
+    void accept(int index, double distance);
+  }
+
+  // Version of searchIndices that passes every exact distance it computes,
+  // between point and the point at some index, to sink. With a BoundedMetric,
+  // distances above the threshold of their computation are not exact and
+  // are left out.
+  void searchIndices(int k, double radius, T point, IntPredicate accept, NeighborBuffer result,
+                     DistanceSink sink) {
+    result.reset(k);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    search(0, centers.length, 0, point, radius, accept, result, path, sink);
+    result.sort();
+  }
+
+  /**
+   * Finds approximate k nearest neighbors of the given point, within the given limits.
+   * <p>
+   * Stores the indices of the neighbors and their distances from the query point
+   * in result, sorted by increasing distance, and marks result as approximate if
+   * the limits cut the search short.
+   *
+   * @param k      Number of neighbors to collect.
+   * @param point  Query point.
+   * @param limits Limits on the work done by the search.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public final void nearestNeighbors(int k, T point, SearchLimits limits, NeighborBuffer result) {
+    searchIndices(k, Double.POSITIVE_INFINITY, point, ALL, limits, result);
+  }
+
+  /**
+   * Finds approximate k nearest neighbors of the given point, restricted to a
+   * search radius and a subset of the points in the tree, within the given limits.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   * @param limits    Limits on the work done by the search.
+   * @param result    Buffer that receives the neighbors. Its previous contents are discarded.
+   * @see #nearestNeighbors(int, Object, SearchLimits, NeighborBuffer)
+   */
+  public final void nearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate,
+                                     SearchLimits limits, NeighborBuffer result) {
+    searchIndices(k, radius, point, accept(predicate), limits, result);
+  }
+
+  private void searchIndices(int k, double radius, T point, IntPredicate accept, SearchLimits limits,
+                             NeighborBuffer result) {
+    if (limits.isExact() && result.getStats() == null) {
+      searchIndices(k, radius, point, accept, result);
+      return;
+    }
+    long start = System.nanoTime();
+    result.reset(k);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    SearchLimits.Budget budget = limits.start();
+    search(0, centers.length, 0, point, radius, accept, result, path, budget);
+    if (budget.isApproximate()) {
+      result.markApproximate();
+    }
+    result.sort();
+    if (result.getStats() != null) {
+      result.recordStats(budget.counters, System.nanoTime() - start);
+    }
+  }
+
+  private static final IntPredicate ALL = i -> true;
+
+  private IntPredicate accept(Predicate<? super T> predicate) {
+    return i -> predicate.test(get(i));
+  }
+
+  /**
+   * Finds the k nearest neighbors of each of the given query points.
+   * <p>
+   * The queries are processed in parallel on the common ForkJoinPool.
+   *
+   * @param k       Number of neighbors to collect per query.
+   * @param queries Query points.
+   * @return For each query, in the order of queries, a list of its nearest
+   * neighbors sorted by increasing distance.
+   */
+  public List<List<Entry<T>>> batchNearestNeighbors(int k, List<? extends T> queries) {
+    return batchNearestNeighbors(k, queries, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Finds the k nearest neighbors of each of the given query points,
+   * using the given pool for parallel processing.
+   *
+   * @param k       Number of neighbors to collect per query.
+   * @param queries Query points.
+   * @param pool    Pool to run the queries in.
+   * @return For each query, in the order of queries, a list of its nearest
+   * neighbors sorted by increasing distance.
+   */
+  public List<List<Entry<T>>> batchNearestNeighbors(int k, List<? extends T> queries, ForkJoinPool pool) {
+    return batch(k, Double.POSITIVE_INFINITY, queries, pool);
+  }
+
+  /**
+   * Finds all points within the given radius of each of the given query points.
+   * <p>
+   * The queries are processed in parallel on the common ForkJoinPool.
+   *
+   * @param queries Query points.
+   * @param radius  Neighbors must be at distance <= radius from their query point.
+   * @return For each query, in the order of queries, a list of the points
+   * within radius of it, sorted by increasing distance.
+   */
+  public List<List<Entry<T>>> batchWithinRadius(List<? extends T> queries, double radius) {
+    return batchWithinRadius(queries, radius, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Finds all points within the given radius of each of the given query
+   * points, using the given pool for parallel processing.
+   *
+   * @param queries Query points.
+   * @param radius  Neighbors must be at distance <= radius from their query point.
+   * @param pool    Pool to run the queries in.
+   * @return For each query, in the order of queries, a list of the points
+   * within radius of it, sorted by increasing distance.
+   */
+  public List<List<Entry<T>>> batchWithinRadius(List<? extends T> queries, double radius, ForkJoinPool pool) {
+    return batch(Integer.MAX_VALUE, radius, queries, pool);
+  }
+
+  private List<List<Entry<T>>> batch(int k, double radius, List<? extends T> queries, ForkJoinPool pool) {
+    List<List<Entry<T>>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+    int grain = Math.max(1, queries.size() / (8 * pool.getParallelism()));
+    pool.invoke(new BatchTask(k, radius, queries, results, 0, queries.size(), grain));
+    return results;
+  }
+
+  // Runs nearest neighbor queries for queries[from:to], writing the results
+  // to the same positions in results. Leaf tasks handle up to grain queries
+  // with a single scratch heap.
+  @SuppressWarnings("serial")
+  private final class BatchTask extends RecursiveAction {
+    private final int k;
+    private final double radius;
+    private final List<? extends T> queries;
+    private final List<List<Entry<T>>> results;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    BatchTask(int k, double radius, List<? extends T> queries, List<List<Entry<T>>> results,
+              int from, int to, int grain) {
+      this.k = k;
+      this.radius = radius;
+      this.queries = queries;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
     }
 
-    if (d < n.radius) {
-      radius = search(n.inside, k, point, radius, predicate, result);
-      if (d + radius >= n.radius) {
-        radius = search(n.outside, k, point, radius, predicate, result);
+    @Override
+    protected void compute() {
+      if (to - from > grain) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new BatchTask(k, radius, queries, results, from, mid, grain),
+          new BatchTask(k, radius, queries, results, mid, to, grain));
+        return;
       }
-    } else {
-      radius = search(n.outside, k, point, radius, predicate, result);
-      if (d - radius <= n.radius) {
-        radius = search(n.inside, k, point, radius, predicate, result);
+
+      NeighborBuffer nearest = k < centers.length ? new NeighborBuffer(k) : new NeighborBuffer();
+      for (int i = from; i < to; i++) {
+        searchIndices(k, radius, queries.get(i), ALL, nearest);
+        results.set(i, entries(nearest).collect(Collectors.toList()));
       }
     }
-    return radius;
   }
 
-  public int size() {
-    return size(root);
+  /**
+   * Finds the k nearest neighbors of the given point, searching the tree in
+   * parallel on the common ForkJoinPool.
+   * <p>
+   * Unlike {@link #batchNearestNeighbors(int, List)}, which spreads many queries
+   * over the available cores, this method spreads a single query. That pays off
+   * for queries that visit a large part of the tree, such as those with a large
+   * k, a large radius or a restrictive predicate. The workers share the k'th
+   * nearest distance found so far, so that each prunes with the others' results.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   */
+  public Stream<Entry<T>> parallelNearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate) {
+    return parallelNearestNeighbors(k, radius, point, predicate, ForkJoinPool.commonPool());
   }
 
-  private static <T> int size(Node<T> n) {
-    if (n == null) {
-      return 0;
+  /**
+   * Finds the k nearest neighbors of the given point, searching the tree in
+   * parallel in the given pool.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   * @param pool      Pool to run the search in.
+   * @see #parallelNearestNeighbors(int, double, Object, Predicate)
+   */
+  public Stream<Entry<T>> parallelNearestNeighbors(int k, double radius, T point, Predicate<? super T> predicate,
+                                                   ForkJoinPool pool) {
+    NeighborBuffer result = new NeighborBuffer();
+    parallelSearch(k, radius, point, accept(predicate), result, pool, PARALLEL_THRESHOLD);
+    return entries(result);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point, searching
+   * the tree in parallel on the common ForkJoinPool.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param point  Query point.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @see #parallelNearestNeighbors(int, double, Object, Predicate)
+   */
+  public Stream<Entry<T>> parallelWithinRadius(T point, double radius) {
+    return parallelWithinRadius(point, radius, x -> true, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Finds all points within the given radius of the given point that satisfy
+   * a predicate, searching the tree in parallel in the given pool.
+   *
+   * @param point     Query point.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param predicate Predicate that returned points must satisfy.
+   * @param pool      Pool to run the search in.
+   */
+  public Stream<Entry<T>> parallelWithinRadius(T point, double radius, Predicate<? super T> predicate,
+                                               ForkJoinPool pool) {
+    return parallelNearestNeighbors(Integer.MAX_VALUE, radius, point, predicate, pool);
+  }
+
+  // Subtrees with fewer slots than this are searched sequentially.
+  static final int PARALLEL_THRESHOLD = 1 << 11;
+
+  // Parallel version of searchIndices. Subtrees of at least threshold slots
+  // fork off a task for their farther child.
+  void parallelSearch(int k, double radius, T point, IntPredicate accept, NeighborBuffer result,
+                      ForkJoinPool pool, int threshold) {
+    if (k <= 0) {
+      result.reset(0);
+      return;
+    }
+    SearchTask task = new SearchTask(0, centers.length, 0, point, k, accept,
+      new AtomicLong(Double.doubleToLongBits(radius)), null, threshold, Double.NEGATIVE_INFINITY);
+    pool.invoke(task);
+    collect(task, k, result);
+  }
+
+  // Version of parallelSearch to be called from a ForkJoinTask, with a search
+  // radius shared with searches in other trees. bound holds its bits; this search
+  // lowers it to the k'th nearest distance it finds.
+  void parallelSearch(int k, T point, IntPredicate accept, NeighborBuffer result, AtomicLong bound,
+                      int threshold) {
+    if (k <= 0) {
+      result.reset(0);
+      return;
+    }
+    SearchTask task = new SearchTask(0, centers.length, 0, point, k, accept, bound, null, threshold,
+      Double.NEGATIVE_INFINITY);
+    task.invoke();
+    collect(task, k, result);
+  }
+
+  private void collect(SearchTask task, int k, NeighborBuffer result) {
+    result.reset(k);
+    for (int i = 0; i < task.result.size(); i++) {
+      result.offer(task.result.index(i), task.result.distance(i));
+    }
+    result.sort();
+  }
+
+  // Searches the subtree [lo, hi) into its own buffer, then merges in the
+  // buffers of the tasks it forked. bound holds the bits of the shared search
+  // radius, which only ever shrinks.
+  @SuppressWarnings("serial")
+  private final class SearchTask extends RecursiveAction {
+    private final int lo;
+    private final int hi;
+    private final int depth;
+    private final T point;
+    private final int k;
+    private final IntPredicate accept;
+    private final AtomicLong bound;
+    private final double[] path;
+    private final int threshold;
+    private final double lowerBound;
+    final NeighborBuffer result = new NeighborBuffer();
+
+    // path holds the distances to the ancestors of [lo, hi), or is null for the
+    // root task. lowerBound is a lower bound on the distance from point to the subtree.
+    SearchTask(int lo, int hi, int depth, T point, int k, IntPredicate accept, AtomicLong bound,
+               double[] path, int threshold, double lowerBound) {
+      this.lo = lo;
+      this.hi = hi;
+      this.depth = depth;
+      this.point = point;
+      this.k = k;
+      this.accept = accept;
+      this.bound = bound;
+      this.threshold = threshold;
+      this.lowerBound = lowerBound;
+      this.path = path != null ? path : pivotDist == null ? null : new double[height.get()];
+    }
+
+    @Override
+    protected void compute() {
+      result.reset(k);
+      List<SearchTask> forked = new ArrayList<>();
+      if (lowerBound <= radius()) {
+        search(lo, hi, depth, forked);
+      }
+      for (int i = forked.size() - 1; i >= 0; i--) {
+        SearchTask task = forked.get(i);
+        task.join();
+        for (int j = 0; j < task.result.size(); j++) {
+          result.offer(task.result.index(j), task.result.distance(j));
+        }
+      }
+      publish();
     }
-    return size(n.inside) + 1 + size(n.outside);
+
+    private double radius() {
+      return Double.longBitsToDouble(bound.get());
+    }
+
+    // Lowers the shared radius to our k'th nearest distance.
+    private void publish() {
+      if (!result.isFull()) {
+        return;
+      }
+      double d = result.maxDistance();
+      for (long bits = bound.get(); d < Double.longBitsToDouble(bits); bits = bound.get()) {
+        if (bound.compareAndSet(bits, Double.doubleToLongBits(d))) {
+          return;
+        }
+      }
+    }
+
+    private void search(int lo, int hi, int depth, List<SearchTask> forked) {
+      if (hi - lo < threshold || lo >= hi || Double.isNaN(radii[lo])) {
+        VPTree.this.search(lo, hi, depth, point, radius(), accept, result, path);
+        publish();
+        return;
+      }
+
+      double d = distance(point, VPTree.this.get(lo), reach(lo) + radius());
+      if (d <= radius() && accept.test(lo) && result.offer(lo, d)) {
+        publish();
+      }
+      if (path != null) {
+        path[depth] = d;
+      }
+
+      double nodeRadius = radii[lo];
+      double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+      double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+      int mid = outside[lo];
+      depth++;
+
+      // Fork the farther subtree, then search the nearer one in this thread.
+      boolean insideFirst = insideBound <= outsideBound;
+      int farLo = insideFirst ? mid : lo + 1;
+      int farHi = insideFirst ? hi : mid;
+      double farBound = insideFirst ? outsideBound : insideBound;
+      if (farLo < farHi && farBound <= radius()) {
+        double[] farPath = path == null ? null : path.clone();
+        SearchTask task = new SearchTask(farLo, farHi, depth, point, k, accept, bound, farPath,
+          threshold, farBound);
+        task.fork();
+        forked.add(task);
+      }
+      if (insideFirst ? insideBound <= radius() : outsideBound <= radius()) {
+        if (insideFirst) {
+          search(lo + 1, mid, depth, forked);
+        } else {
+          search(mid, hi, depth, forked);
+        }
+      }
+    }
+  }
+
+  /**
+   * Represents a pair of points found by a join, and their distance.
+   */
+  public static final class Pair<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final T first;
+    public final T second;
+    public final double distance;
+
+    Pair(T first, T second, double distance) {
+      this.first = first;
+      this.second = second;
+      this.distance = distance;
+    }
+
+    public String toString() {
+      return String.format("(%s, %s) at distance %g", first, second, distance);
+    }
+  }
+
+  /**
+   * Finds all pairs of points in the tree at distance <= radius from each other.
+   * <p>
+   * This is a similarity self-join. Each pair of distinct slots in the tree
+   * is reported at most once, in no particular order of its points.
+   * <p>
+   * The returned stream is lazy and parallel. The join runs as the stream is
+   * consumed, on the common ForkJoinPool, and keeps only the pending parts of
+   * the join in memory, not all pairs. Short-circuiting operations such as
+   * {@code limit} and {@code findAny} stop it early.
+   *
+   * @param radius Maximum distance between the points of a pair.
+   */
+  public Stream<Pair<T>> selfJoin(double radius) {
+    return StreamSupport.stream(selfJoinSpliterator(radius), true);
+  }
+
+  /**
+   * Finds all pairs of points in the tree at distance <= radius from each other,
+   * using the given pool for parallel processing.
+   * <p>
+   * Unlike {@link #selfJoin(double)}, this runs the whole join in pool before
+   * it returns, so it holds all pairs in memory.
+   *
+   * @param radius Maximum distance between the points of a pair.
+   * @param pool   Pool to run the join in.
+   * @see #selfJoin(double)
+   */
+  public Stream<Pair<T>> selfJoin(double radius, ForkJoinPool pool) {
+    return joinIn(pool, selfJoinSpliterator(radius));
+  }
+
+  private JoinSpliterator<T> selfJoinSpliterator(double radius) {
+    return new JoinSpliterator<>(this, this, radius,
+      new JoinWork(new Region(0, size(), null, 0, 0), null, Double.NaN));
+  }
+
+  /**
+   * Finds all pairs of a point in this tree and a point in other at distance
+   * <= radius from each other.
+   * <p>
+   * The first point of each pair comes from this tree, the second from other.
+   * Distances are computed with this tree's metric. Like that of
+   * {@link #selfJoin(double)}, the returned stream is lazy and parallel.
+   *
+   * @param other  Tree to join with.
+   * @param radius Maximum distance between the points of a pair.
+   */
+  public Stream<Pair<T>> join(VPTree<T> other, double radius) {
+    return StreamSupport.stream(joinSpliterator(other, radius), true);
+  }
+
+  /**
+   * Finds all pairs of a point in this tree and a point in other at distance
+   * <= radius from each other, using the given pool for parallel processing.
+   * <p>
+   * Unlike {@link #join(VPTree, double)}, this runs the whole join in pool
+   * before it returns, so it holds all pairs in memory.
+   *
+   * @param other  Tree to join with.
+   * @param radius Maximum distance between the points of a pair.
+   * @param pool   Pool to run the join in.
+   * @see #join(VPTree, double)
+   */
+  public Stream<Pair<T>> join(VPTree<T> other, double radius, ForkJoinPool pool) {
+    return joinIn(pool, joinSpliterator(other, radius));
+  }
+
+  private JoinSpliterator<T> joinSpliterator(VPTree<T> other, double radius) {
+    return new JoinSpliterator<>(this, other, radius,
+      new JoinWork(new Region(0, size(), null, 0, 0), new Region(0, other.size(), null, 0, 0), Double.NaN));
+  }
+
+  private static <T> Stream<Pair<T>> joinIn(ForkJoinPool pool, JoinSpliterator<T> join) {
+    Queue<List<Pair<T>>> out = new ConcurrentLinkedQueue<>();
+    pool.invoke(new JoinTask<>(join, out));
+    return out.stream().flatMap(List::stream);
+  }
+
+  // Finds all points in the subtree [lo, hi) within radius of point.
+  private void searchSubtree(int lo, int hi, T point, double radius, NeighborBuffer result) {
+    result.reset(Integer.MAX_VALUE);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    search(lo, hi, 0, point, radius, ALL, result, path);
+  }
+
+  // A subtree [lo, hi) for a join, with the shell [min, max] around its
+  // parent's center that contains its points. The root has no parent.
+  private static final class Region {
+    final int lo;
+    final int hi;
+    final Object parent;
+    final double min;
+    final double max;
+
+    Region(int lo, int hi, Object parent, double min, double max) {
+      this.lo = lo;
+      this.hi = hi;
+      this.parent = parent;
+      this.min = min;
+      this.max = max;
+    }
+
+    long size() {
+      return hi - lo;
+    }
+  }
+
+  // Pairs of regions involving fewer than this many point pairs are not
+  // split off by JoinSpliterator.
+  private static final long JOIN_GRAIN = 1 << 16;
+
+  // A pair of regions to join: region a of the left tree with region b of the
+  // right tree, or if b is null, a with itself. d is the distance between the
+  // regions' parents, or NaN if either has none.
+  private static final class JoinWork {
+    final Region a;
+    final Region b;
+    final double d;
+
+    JoinWork(Region a, Region b, double d) {
+      this.a = a;
+      this.b = b;
+      this.d = d;
+    }
+
+    // Number of point pairs involved.
+    long size() {
+      return b == null ? a.size() * a.size() / 2 : a.size() * b.size();
+    }
+  }
+
+  // Runs a join to completion in a pool, forking off parts of it while it can
+  // be split. Each task adds the pairs it found to out as a single list.
+  @SuppressWarnings("serial")
+  private static final class JoinTask<T> extends RecursiveAction {
+    private final JoinSpliterator<T> join;
+    private final Queue<List<Pair<T>>> out;
+
+    JoinTask(JoinSpliterator<T> join, Queue<List<Pair<T>>> out) {
+      this.join = join;
+      this.out = out;
+    }
+
+    @Override
+    protected void compute() {
+      List<JoinTask<T>> forked = new ArrayList<>();
+      List<Pair<T>> pairs = new ArrayList<>();
+      for (;;) {
+        JoinSpliterator<T> split = join.trySplit();
+        if (split != null) {
+          JoinTask<T> task = new JoinTask<>(split, out);
+          task.fork();
+          forked.add(task);
+        } else if (!join.tryAdvance(pairs::add)) {
+          break;
+        }
+      }
+      for (int i = forked.size() - 1; i >= 0; i--) {
+        forked.get(i).join();
+      }
+      if (!pairs.isEmpty()) {
+        out.add(pairs);
+      }
+    }
+  }
+
+  // Dual-tree join, driven by an explicit stack of pending JoinWork.
+  //
+  // Each step pops a pair of regions and splits the larger region into its
+  // center and its two subtrees. The center is joined to the other region by
+  // a range search; the subtrees are pushed to be joined to it, unless the
+  // shells around the parents show that they are too far apart. Pairs found
+  // by a step are queued until they are consumed. Since children are pushed
+  // after their parents, the bottom of the stack holds the largest pairs of
+  // regions; trySplit hands them off.
+  private static final class JoinSpliterator<T> implements Spliterator<Pair<T>> {
+    private final VPTree<T> left;
+    private final VPTree<T> right;
+    private final double radius;
+    private final ArrayDeque<JoinWork> work = new ArrayDeque<>();
+    private final ArrayDeque<Pair<T>> pairs = new ArrayDeque<>();
+    private final NeighborBuffer buffer = new NeighborBuffer();
+
+    JoinSpliterator(VPTree<T> left, VPTree<T> right, double radius, JoinWork first) {
+      this.left = left;
+      this.right = right;
+      this.radius = radius;
+      work.addLast(first);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Pair<T>> action) {
+      while (pairs.isEmpty()) {
+        if (work.isEmpty()) {
+          return false;
+        }
+        step();
+      }
+      action.accept(pairs.pollFirst());
+      return true;
+    }
+
+    private void step() {
+      JoinWork w = work.pollLast();
+      if (w.b == null) {
+        self(w.a);
+      } else {
+        cross(w.a, w.b, w.d);
+      }
+    }
+
+    @Override
+    public JoinSpliterator<T> trySplit() {
+      // Expand a lone pair of regions, so that there is something to hand off.
+      while (work.size() == 1 && work.peekFirst().size() >= JOIN_GRAIN) {
+        step();
+      }
+      if (work.size() < 2 || work.peekFirst().size() < JOIN_GRAIN) {
+        return null;
+      }
+      return new JoinSpliterator<>(left, right, radius, work.pollFirst());
+    }
+
+    @Override
+    public long estimateSize() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+      return NONNULL | IMMUTABLE;
+    }
+
+    private void push(Region a, Region b, double d) {
+      work.addLast(new JoinWork(a, b, d));
+    }
+
+    private void self(Region x) {
+      int lo = x.lo;
+      int hi = x.hi;
+      if (hi - lo < 2) {
+        return;
+      }
+      VPTree<T> tree = left;
+      if (Double.isNaN(tree.radii[lo])) {
+        for (int i = lo; i < hi; i++) {
+          for (int j = i + 1; j < hi; j++) {
+            emit(tree.get(i), tree.get(j), tree.metric.distance(tree.get(i), tree.get(j)));
+          }
+        }
+        return;
+      }
+
+      T center = tree.get(lo);
+      int mid = tree.outside[lo];
+      Region inside = new Region(lo + 1, mid, center, tree.insideMin[lo], tree.insideMax[lo]);
+      Region outside = new Region(mid, hi, center, tree.radii[lo], tree.outsideMax[lo]);
+      centerPairs(center, tree, inside, false);
+      centerPairs(center, tree, outside, false);
+      push(inside, outside, 0);
+      push(outside, null, 0);
+      push(inside, null, 0);
+    }
+
+    private void cross(Region a, Region b, double d) {
+      if (a.lo >= a.hi || b.lo >= b.hi || lowerBound(a, b, d) > radius) {
+        return;
+      }
+      boolean aLeaf = Double.isNaN(left.radii[a.lo]);
+      boolean bLeaf = Double.isNaN(right.radii[b.lo]);
+      if (aLeaf && bLeaf) {
+        for (int i = a.lo; i < a.hi; i++) {
+          for (int j = b.lo; j < b.hi; j++) {
+            emit(left.get(i), right.get(j), left.metric.distance(left.get(i), right.get(j)));
+          }
+        }
+        return;
+      }
+
+      if (!aLeaf && (bLeaf || a.size() >= b.size())) {
+        T center = left.get(a.lo);
+        centerPairs(center, right, b, false);
+        double d2 = b.parent == null ? Double.NaN : left.metric.distance(center, get(b.parent));
+        for (Region child : children(left, a.lo, a.hi)) {
+          push(child, b, d2);
+        }
+      } else {
+        T center = right.get(b.lo);
+        centerPairs(center, left, a, true);
+        double d2 = a.parent == null ? Double.NaN : left.metric.distance(get(a.parent), center);
+        for (Region child : children(right, b.lo, b.hi)) {
+          push(a, child, d2);
+        }
+      }
+    }
+
+    // Emits the pairs of center and points of region within radius. If
+    // centerSecond, center is the second point of the pairs.
+    private void centerPairs(T center, VPTree<T> tree, Region region, boolean centerSecond) {
+      if (region.lo >= region.hi) {
+        return;
+      }
+      tree.searchSubtree(region.lo, region.hi, center, radius, buffer);
+      for (int i = 0; i < buffer.size(); i++) {
+        T point = tree.get(buffer.index(i));
+        if (centerSecond) {
+          emit(point, center, buffer.distance(i));
+        } else {
+          emit(center, point, buffer.distance(i));
+        }
+      }
+    }
+
+    private void emit(T first, T second, double distance) {
+      if (distance <= radius) {
+        pairs.add(new Pair<>(first, second, distance));
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(Object point) {
+      return (T) point;
+    }
+
+    private static Region[] children(VPTree<?> tree, int lo, int hi) {
+      Object center = tree.centers[lo];
+      int mid = tree.outside[lo];
+      return new Region[]{
+        new Region(lo + 1, mid, center, tree.insideMin[lo], tree.insideMax[lo]),
+        new Region(mid, hi, center, tree.radii[lo], tree.outsideMax[lo])
+      };
+    }
+
+    // Lower bound on the distance between points of a and b, given the distance
+    // d between their parents, by the triangle inequality.
+    private static double lowerBound(Region a, Region b, double d) {
+      if (Double.isNaN(d)) {
+        return Double.NEGATIVE_INFINITY;
+      }
+      return Math.max(d - a.max - b.max, Math.max(a.min - d - b.max, b.min - d - a.max));
+    }
+  }
+
+  /**
+   * Returns all points in the tree, ordered by increasing distance from the
+   * given point.
+   * <p>
+   * The stream is lazy: it performs a best-first traversal of the tree that
+   * does only as much work as is needed to produce the entries that are
+   * consumed. Short-circuiting operations such as {@code limit} and
+   * {@code takeWhile} thus avoid searching the rest of the tree.
+   *
+   * @param point Query point.
+   */
+  public Stream<Entry<T>> nearestFirst(T point) {
+    return StreamSupport.stream(new BestFirstSpliterator(point), false);
+  }
+
+  // Best-first traversal (Hjaltason and Samet, Ranking in spatial databases, 1995).
+  // Keeps a min-heap of pending items, either subtrees keyed by a lower bound on
+  // their distance from the query point, or points keyed by their distance.
+  // Whenever a point surfaces, no unseen point can be closer.
+  private final class BestFirstSpliterator implements Spliterator<Entry<T>> {
+    private final T query;
+    private int remaining = centers.length;
+
+    // Heap of pending items. A subtree item holds its slot range [lo, hi);
+    // a point item has hi == -1 and lo set to the point's index.
+    private double[] keys = new double[16];
+    private int[] los = new int[16];
+    private int[] his = new int[16];
+    private int size;
+
+    BestFirstSpliterator(T query) {
+      this.query = query;
+      if (centers.length > 0) {
+        push(0, 0, centers.length);
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+      while (size > 0) {
+        double key = keys[0];
+        int lo = los[0];
+        int hi = his[0];
+        pop();
+
+        if (hi == -1) {
+          remaining--;
+          action.accept(new Entry<>(get(lo), key));
+          return true;
+        }
+
+        double d = metric.distance(query, get(lo));
+        push(d, lo, -1);
+
+        double nodeRadius = radii[lo];
+        int mid = outside[lo];
+        if (Double.isNaN(nodeRadius)) {
+          // Rest of a leaf bucket.
+          if (mid < hi) {
+            push(key, mid, hi);
+          }
+          continue;
+        }
+        if (lo + 1 < mid) {
+          push(max(key, d - insideMax[lo], insideMin[lo] - d), lo + 1, mid);
+        }
+        if (mid < hi) {
+          push(max(key, d - outsideMax[lo], nodeRadius - d), mid, hi);
+        }
+      }
+      return false;
+    }
+
+    private void push(double key, int lo, int hi) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        los = Arrays.copyOf(los, 2 * size);
+        his = Arrays.copyOf(his, 2 * size);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (keys[parent] <= key) {
+          break;
+        }
+        set(i, keys[parent], los[parent], his[parent]);
+        i = parent;
+      }
+      set(i, key, lo, hi);
+    }
+
+    private void pop() {
+      size--;
+      double key = keys[size];
+      int lo = los[size];
+      int hi = his[size];
+      int i = 0;
+      for (int child; (child = 2 * i + 1) < size; i = child) {
+        if (child + 1 < size && keys[child + 1] < keys[child]) {
+          child++;
+        }
+        if (key <= keys[child]) {
+          break;
+        }
+        set(i, keys[child], los[child], his[child]);
+      }
+      set(i, key, lo, hi);
+    }
+
+    private double max(double a, double b, double c) {
+      return Math.max(Math.max(a, b), c);
+    }
+
+    private void set(int i, double key, int lo, int hi) {
+      keys[i] = key;
+      los[i] = lo;
+      his[i] = hi;
+    }
+
+    @Override
+    public Spliterator<Entry<T>> trySplit() {
+      return null;
+    }
+
+    @Override
+    public long estimateSize() {
+      return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | NONNULL | IMMUTABLE;
+    }
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, in no particular order. The stream is lazy: the tree
+   * is searched as entries are consumed, so that short-circuiting operations
+   * such as findFirst, limit and anyMatch stop the search early. Parallel
+   * streams split the search over the pending subtrees.
+   *
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @param point  Query point.
+   */
+  public Stream<Entry<T>> withinRadius(T point, double radius) {
+    return withinRadius(point, radius, x -> true);
+  }
+
+  /**
+   * Finds all points within the given radius of the given point that satisfy a predicate.
+   * <p>
+   * Returns a lazy stream of entries containing neighbor points and their
+   * distance from the query point, in no particular order.
+   *
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param predicate Predicate that returned points must satisfy.
+   */
+  public Stream<Entry<T>> withinRadius(T point, double radius, Predicate<? super T> predicate) {
+    return StreamSupport.stream(new RadiusSpliterator(point, radius, accept(predicate), 0, centers.length), false);
+  }
+
+  // Subtrees with fewer slots than this are not split off by RadiusSpliterator.
+  private static final int MIN_SPLIT = 1 << 8;
+
+  // Depth-first range search, driven by an explicit stack of pending
+  // subtrees. The stack holds slot ranges [lo, hi) as pairs of ints, in
+  // stack[2 * bottom : 2 * top]. Since children are pushed after their
+  // parents, the bottom of the stack holds the largest subtrees; trySplit
+  // hands them off. Leaf pivot tables are not used.
+  private final class RadiusSpliterator implements Spliterator<Entry<T>> {
+    private final T point;
+    private final double radius;
+    private final IntPredicate accept;
+    private int[] stack = new int[32];
+    private int bottom = 0;
+    private int top = 0;
+    // Point found by the last step, or -1.
+    private int found = -1;
+    private double foundDistance;
+
+    RadiusSpliterator(T point, double radius, IntPredicate accept, int lo, int hi) {
+      this.point = point;
+      this.radius = radius;
+      this.accept = accept;
+      if (lo < hi) {
+        push(lo, hi);
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+      while (found == -1) {
+        if (bottom == top) {
+          return false;
+        }
+        step();
+      }
+      Entry<T> entry = new Entry<>(get(found), foundDistance);
+      found = -1;
+      action.accept(entry);
+      return true;
+    }
+
+    // Pops a subtree, tests its root and pushes its children that may hold
+    // points within the radius.
+    private void step() {
+      top--;
+      int lo = stack[2 * top];
+      int hi = stack[2 * top + 1];
+
+      double nodeRadius = radii[lo];
+      int mid = outside[lo];
+      boolean leaf = Double.isNaN(nodeRadius);
+      double d = distance(point, get(lo), leaf ? radius : reach(lo) + radius);
+      if (d <= radius && accept.test(lo)) {
+        found = lo;
+        foundDistance = d;
+      }
+      if (leaf) {
+        // Rest of a leaf bucket.
+        if (mid < hi) {
+          push(mid, hi);
+        }
+        return;
+      }
+
+      // Push the nearer child last, so that it is searched first.
+      double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+      double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+      boolean insideFirst = insideBound <= outsideBound;
+      if (insideFirst && outsideBound <= radius) {
+        push(mid, hi);
+      }
+      if (insideBound <= radius) {
+        push(lo + 1, mid);
+      }
+      if (!insideFirst && outsideBound <= radius) {
+        push(mid, hi);
+      }
+    }
+
+    private void push(int lo, int hi) {
+      if (2 * top == stack.length) {
+        if (bottom > 0) {
+          System.arraycopy(stack, 2 * bottom, stack, 0, 2 * (top - bottom));
+          top -= bottom;
+          bottom = 0;
+        } else {
+          stack = Arrays.copyOf(stack, 2 * stack.length);
+        }
+      }
+      stack[2 * top] = lo;
+      stack[2 * top + 1] = hi;
+      top++;
+    }
+
+    @Override
+    public Spliterator<Entry<T>> trySplit() {
+      // Expand a lone subtree, so that there is something to hand off.
+      if (top - bottom == 1 && found == -1 && stack[2 * bottom + 1] - stack[2 * bottom] >= MIN_SPLIT) {
+        step();
+      }
+      if (top - bottom < 2) {
+        return null;
+      }
+      int lo = stack[2 * bottom];
+      int hi = stack[2 * bottom + 1];
+      if (hi - lo < MIN_SPLIT) {
+        return null;
+      }
+      bottom++;
+      return new RadiusSpliterator(point, radius, accept, lo, hi);
+    }
+
+    @Override
+    public long estimateSize() {
+      long size = found == -1 ? 0 : 1;
+      for (int i = bottom; i < top; i++) {
+        size += stack[2 * i + 1] - stack[2 * i];
+      }
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return NONNULL | IMMUTABLE;
+    }
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point among the points that
+   * match a filter on their attributes and satisfy a predicate.
+   * <p>
+   * The search skips subtrees that, by their attribute summaries, hold no
+   * points that match filter, and tests points against filter before computing
+   * their distance to the query point. Filters are therefore much cheaper than
+   * equivalent predicates, especially selective ones.
+   * <p>
+   * Returns a stream of entries containing neighbor points and their distance
+   * from the query point, sorted by increasing distance.
+   *
+   * @param k         Number of neighbors to collect.
+   * @param radius    Neighbors must be at distance <= radius from the query point.
+   * @param point     Query point.
+   * @param filter    Filter that returned points must match.
+   * @param predicate Predicate that returned points must satisfy.
+   * @throws IllegalStateException If filter restricts categories or keys, but
+   *                               the tree was built without them.
+   * @see Builder#categories
+   * @see Builder#key
+   */
+  public Stream<Entry<T>> nearestNeighbors(int k, double radius, T point, AttributeFilter filter,
+                                           Predicate<? super T> predicate) {
+    NeighborBuffer result = new NeighborBuffer();
+    nearestNeighbors(k, radius, point, filter, predicate, result);
+    return entries(result);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point among the points that
+   * match a filter on their attributes and satisfy a predicate, storing them
+   * in result.
+   *
+   * @see #nearestNeighbors(int, double, Object, AttributeFilter, Predicate)
+   */
+  public void nearestNeighbors(int k, double radius, T point, AttributeFilter filter,
+                               Predicate<? super T> predicate, NeighborBuffer result) {
+    if (filter.filtersCategories() && categories == null) {
+      throw new IllegalStateException("tree was built without categories");
+    }
+    if (filter.filtersKeys() && keys == null) {
+      throw new IllegalStateException("tree was built without keys");
+    }
+    result.reset(k);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    search(0, centers.length, 0, point, radius, filter, accept(predicate), result, path);
+    result.sort();
+  }
+
+  /**
+   * Finds all points within the given radius of the given point that match a filter.
+   *
+   * @see #nearestNeighbors(int, double, Object, AttributeFilter, Predicate)
+   */
+  public Stream<Entry<T>> withinRadius(T point, double radius, AttributeFilter filter) {
+    return nearestNeighbors(Integer.MAX_VALUE, radius, point, filter, x -> true);
+  }
+
+  /**
+   * Counts the points within the given radius of the given point.
+   * <p>
+   * Unlike {@link #withinRadius(Object, double)}, this method does not collect
+   * the points. Subtrees that lie entirely within the radius, by the distance
+   * bounds stored in the tree, are counted without being visited.
+   *
+   * @param point  Query point.
+   * @param radius Points must be at distance <= radius from the query point.
+   */
+  public int countWithinRadius(T point, double radius) {
+    double[] path = pivotDist == null ? null : new double[height.get()];
+    return count(0, centers.length, 0, point, radius, path);
+  }
+
+  /**
+   * Reports whether any point lies within the given radius of the given point.
+   * <p>
+   * The search stops at the first such point. In a tree with buckets, leaf
+   * points that the pivot table places within the radius count as found
+   * without computing their distance.
+   *
+   * @param point  Query point.
+   * @param radius Maximum distance from the query point.
+   */
+  public boolean anyWithinRadius(T point, double radius) {
+    double[] path = pivotDist == null ? null : new double[height.get()];
+    return any(0, centers.length, 0, point, radius, path);
+  }
+
+  private int count(int lo, int hi, int depth, T point, double radius, double[] path) {
+    if (lo >= hi) {
+      return 0;
+    }
+    if (Double.isNaN(radii[lo])) {
+      int count = 0;
+      for (int i = lo; i < hi; i++) {
+        if (path != null) {
+          if (pivotBound(i, depth, path) > radius) {
+            continue;
+          }
+          if (pivotUpperBound(i, depth, path) <= radius) {
+            count++;
+            continue;
+          }
+        }
+        if (distance(point, get(i), radius) <= radius) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    double d = distance(point, get(lo), reach(lo) + radius);
+    if (path != null) {
+      path[depth] = d;
+    }
+    int mid = outside[lo];
+    return (d <= radius ? 1 : 0)
+      + count(lo + 1, mid, depth + 1, point, radius, path, d, insideMin[lo], insideMax[lo])
+      + count(mid, hi, depth + 1, point, radius, path, d, radii[lo], outsideMax[lo]);
+  }
+
+  // Counts the points in the child subtree [lo, hi), whose distances from its
+  // parent's center lie in [min, max]. d is the distance from point to that center.
+  private int count(int lo, int hi, int depth, T point, double radius, double[] path,
+                    double d, double min, double max) {
+    if (lo >= hi || Math.max(d - max, min - d) > radius) {
+      return 0;
+    }
+    if (d + max <= radius) {
+      return hi - lo;
+    }
+    return count(lo, hi, depth, point, radius, path);
+  }
+
+  private boolean any(int lo, int hi, int depth, T point, double radius, double[] path) {
+    if (lo >= hi) {
+      return false;
+    }
+    if (Double.isNaN(radii[lo])) {
+      for (int i = lo; i < hi; i++) {
+        if (path != null) {
+          if (pivotBound(i, depth, path) > radius) {
+            continue;
+          }
+          if (pivotUpperBound(i, depth, path) <= radius) {
+            return true;
+          }
+        }
+        if (distance(point, get(i), radius) <= radius) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    double d = distance(point, get(lo), reach(lo) + radius);
+    if (d <= radius) {
+      return true;
+    }
+    if (path != null) {
+      path[depth] = d;
+    }
+    int mid = outside[lo];
+    // Nearer subtree first, as in search.
+    if (Math.max(d - insideMax[lo], insideMin[lo] - d) <= Math.max(d - outsideMax[lo], radii[lo] - d)) {
+      return any(lo + 1, mid, depth + 1, point, radius, path, d, insideMin[lo], insideMax[lo])
+        || any(mid, hi, depth + 1, point, radius, path, d, radii[lo], outsideMax[lo]);
+    }
+    return any(mid, hi, depth + 1, point, radius, path, d, radii[lo], outsideMax[lo])
+      || any(lo + 1, mid, depth + 1, point, radius, path, d, insideMin[lo], insideMax[lo]);
+  }
+
+  // Version of any for a child subtree, like the corresponding count. Since
+  // the parent's center is farther than radius from point, the subtree cannot
+  // lie entirely within the radius.
+  private boolean any(int lo, int hi, int depth, T point, double radius, double[] path,
+                      double d, double min, double max) {
+    return lo < hi && Math.max(d - max, min - d) <= radius && any(lo, hi, depth, point, radius, path);
+  }
+
+  /**
+   * Finds the k points farthest from the given point.
+   * <p>
+   * Returns a stream of entries containing the points and their distance from
+   * the query point, sorted by decreasing distance. The search skips subtrees
+   * that cannot hold a point farther than the k'th farthest found so far,
+   * using the distances from their vantage points to their farthest points.
+   *
+   * @param k     Number of points to collect.
+   * @param point Query point.
+   */
+  public Stream<Entry<T>> farthestNeighbors(int k, T point) {
+    NeighborBuffer result = new NeighborBuffer();
+    farthestNeighbors(k, point, result);
+    return entries(result);
+  }
+
+  /**
+   * Finds the k points farthest from the given point.
+   * <p>
+   * Stores their indices and their distances from the query point in result,
+   * sorted by decreasing distance.
+   *
+   * @param k      Number of points to collect.
+   * @param point  Query point.
+   * @param result Buffer that receives the points. Its previous contents are discarded.
+   */
+  public void farthestNeighbors(int k, T point, NeighborBuffer result) {
+    result.reset(k);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    farthest(0, centers.length, 0, point, result, path);
+    result.sort();
+    result.negate();
+  }
+
+  // Branch-and-bound search for the farthest points, which result holds with
+  // negated distances. Subtrees are searched farthest upper bound first.
+  private void farthest(int lo, int hi, int depth, T point, NeighborBuffer result, double[] path) {
+    if (lo >= hi) {
+      return;
+    }
+
+    double nodeRadius = radii[lo];
+    if (Double.isNaN(nodeRadius)) {
+      for (int i = lo; i < hi; i++) {
+        if (path != null && pivotUpperBound(i, depth, path) <= nearest(result)) {
+          continue;
+        }
+        result.offer(i, -metric.distance(point, get(i)));
+      }
+      return;
+    }
+
+    double d = metric.distance(point, get(lo));
+    result.offer(lo, -d);
+    if (path != null) {
+      path[depth] = d;
+    }
+
+    // Upper bounds on the distance from point to the subtrees. NaN for an
+    // empty outside subtree, which makes all comparisons fail.
+    double insideUpper = d + insideMax[lo];
+    double outsideUpper = d + outsideMax[lo];
+
+    int mid = outside[lo];
+    depth++;
+    if (insideUpper >= outsideUpper) {
+      if (insideUpper > nearest(result)) {
+        farthest(lo + 1, mid, depth, point, result, path);
+      }
+      if (outsideUpper > nearest(result)) {
+        farthest(mid, hi, depth, point, result, path);
+      }
+    } else {
+      if (outsideUpper > nearest(result)) {
+        farthest(mid, hi, depth, point, result, path);
+      }
+      if (insideUpper > nearest(result)) {
+        farthest(lo + 1, mid, depth, point, result, path);
+      }
+    }
+  }
+
+  // Distance of the nearest of the farthest points found so far, which a
+  // point must exceed to be added.
+  private static double nearest(NeighborBuffer farthest) {
+    return farthest.isFull() ? -farthest.maxDistance() : Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Finds the reverse k nearest neighbors of the given point: the points in
+   * the tree that have the query point among their k nearest neighbors.
+   * <p>
+   * A point p in the tree is a reverse neighbor if its distance to the query
+   * point is at most the distance to its k'th nearest neighbor among the
+   * other points in the tree (or if the tree has at most k other points).
+   * <p>
+   * The first query for a given k computes the k nearest neighbors of all
+   * points in the tree, in parallel, and caches their distances together with
+   * their maximum per subtree, at a cost of two doubles per point. The search
+   * then skips every subtree whose points are all too far from the query
+   * point for their cached radius.
+   * <p>
+   * Returns a stream of entries containing the reverse neighbors and their
+   * distance from the query point, sorted by increasing distance.
+   *
+   * @param k     Number of nearest neighbors of the points in the tree.
+   * @param point Query point.
+   */
+  public Stream<Entry<T>> reverseNearestNeighbors(int k, T point) {
+    NeighborBuffer result = new NeighborBuffer();
+    reverseNearestNeighbors(k, point, result);
+    return entries(result);
+  }
+
+  /**
+   * Finds the reverse k nearest neighbors of the given point, storing their
+   * indices and distances from the query point in result, sorted by
+   * increasing distance.
+   *
+   * @see #reverseNearestNeighbors(int, Object)
+   */
+  public void reverseNearestNeighbors(int k, T point, NeighborBuffer result) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be positive, got " + k);
+    }
+    ReverseRadii r = reverseRadii(k);
+    result.reset(Integer.MAX_VALUE);
+    double[] path = pivotDist == null ? null : result.scratch(height.get());
+    reverse(0, centers.length, 0, point, r, result, path);
+    result.sort();
+  }
+
+  // For each slot i, the distance from the point in slot i to its k'th
+  // nearest neighbor, and the maximum of that distance over the subtree rooted at i.
+  private static final class ReverseRadii {
+    final double[] radius;
+    final double[] subtreeMax;
+
+    ReverseRadii(int n) {
+      radius = new double[n];
+      subtreeMax = new double[n];
+    }
+  }
+
+  private synchronized ReverseRadii reverseRadii(int k) {
+    if (reverseRadii == null) {
+      reverseRadii = new HashMap<>();
+    }
+    return reverseRadii.computeIfAbsent(k, this::computeReverseRadii);
+  }
+
+  private ReverseRadii computeReverseRadii(int k) {
+    int n = centers.length;
+    ReverseRadii r = new ReverseRadii(n);
+    KnnGraph graph = KnnGraph.exact(this, k);
+    for (int i = 0; i < n; i++) {
+      r.radius[i] = graph.k() < k ? Double.POSITIVE_INFINITY : graph.distance(i, k - 1);
+    }
+    maxRadii(0, n, r);
+    return r;
+  }
+
+  // Fills in r.subtreeMax for the subtree [lo, hi).
+  private void maxRadii(int lo, int hi, ReverseRadii r) {
+    if (lo >= hi) {
+      return;
+    }
+    int mid = outside[lo];
+    maxRadii(lo + 1, mid, r);
+    maxRadii(mid, hi, r);
+    double max = r.radius[lo];
+    if (lo + 1 < mid) {
+      max = Math.max(max, r.subtreeMax[lo + 1]);
+    }
+    if (mid < hi) {
+      max = Math.max(max, r.subtreeMax[mid]);
+    }
+    r.subtreeMax[lo] = max;
+  }
+
+  // Search for reverse neighbors. Each point has its own search radius, and a
+  // subtree is searched only if its lower bound is within the largest.
+  private void reverse(int lo, int hi, int depth, T point, ReverseRadii r, NeighborBuffer result,
+                       double[] path) {
+    if (lo >= hi) {
+      return;
+    }
+
+    double nodeRadius = radii[lo];
+    if (Double.isNaN(nodeRadius)) {
+      for (int i = lo; i < hi; i++) {
+        if (path != null && pivotBound(i, depth, path) > r.radius[i]) {
+          continue;
+        }
+        double d = distance(point, get(i), r.radius[i]);
+        if (d <= r.radius[i]) {
+          result.offer(i, d);
+        }
+      }
+      return;
+    }
+
+    double d = distance(point, get(lo), reach(lo) + r.subtreeMax[lo]);
+    if (d <= r.radius[lo]) {
+      result.offer(lo, d);
+    }
+    if (path != null) {
+      path[depth] = d;
+    }
+
+    int mid = outside[lo];
+    depth++;
+    if (lo + 1 < mid && Math.max(d - insideMax[lo], insideMin[lo] - d) <= r.subtreeMax[lo + 1]) {
+      reverse(lo + 1, mid, depth, point, r, result, path);
+    }
+    if (mid < hi && Math.max(d - outsideMax[lo], nodeRadius - d) <= r.subtreeMax[mid]) {
+      reverse(mid, hi, depth, point, r, result, path);
+    }
+  }
+
+  private Stream<Entry<T>> entries(NeighborBuffer buffer) {
+    return IntStream.range(0, buffer.size())
+                    .mapToObj(i -> new Entry<>(get(buffer.index(i)), buffer.distance(i)));
+  }
+
+  // Branch-and-bound search algorithm. Fills result with the indices of the points
+  // that live within radius of point and are accepted. Since result keeps only
+  // the k nearest points offered to it, these will be the k nearest neighbors
+  // of point within the set of accepted points.
+  //
+  // The subtree to search occupies the slots [lo, hi) and has depth ancestors.
+  // If the tree has a pivot table, path[i] receives the distance from point to
+  // the center of the ancestor at depth i.
+  private double search(int lo, int hi, int depth, T point, double radius, IntPredicate accept,
+                        NeighborBuffer result, double[] path) {
+    return search(lo, hi, depth, point, radius, accept, result, path, (DistanceSink) null);
+  }
+
+  private double search(int lo, int hi, int depth, T point, double radius, IntPredicate accept,
+                        NeighborBuffer result, double[] path, DistanceSink sink) {
+    if (lo >= hi) {
+      return radius;
+    }
+
+    double nodeRadius = radii[lo];
+    if (Double.isNaN(nodeRadius)) {
+      // Leaf bucket holding [lo, hi). Test the cheap conditions first.
+      for (int i = lo; i < hi; i++) {
+        if (path != null && pivotBound(i, depth, path) > radius || !accept.test(i)) {
+          continue;
+        }
+        double d = distance(point, get(i), radius);
+        if (sink != null && (bounded == null || d <= radius)) {
+          sink.accept(i, d);
+        }
+        if (d <= radius && result.offer(i, d) && result.isFull()) {
+          radius = result.maxDistance();
+        }
+      }
+      return radius;
+    }
+
+    T center = get(lo);
+    double threshold = reach(lo) + radius;
+    double d = distance(point, center, threshold);
+    if (sink != null && (bounded == null || d <= threshold)) {
+      sink.accept(lo, d);
+    }
+    if (d <= radius && accept.test(lo) && result.offer(lo, d) && result.isFull()) {
+      radius = result.maxDistance();
+    }
+    if (path != null) {
+      path[depth] = d;
+    }
+
+    // Lower bounds on the distance from point to the subtrees, from the
+    // distance bounds of the subtrees' shells around center. NaN for an
+    // empty outside subtree, which makes all comparisons fail.
+    double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+    double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+
+    int mid = outside[lo];
+    depth++;
+    if (insideBound <= outsideBound) {
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, depth, point, radius, accept, result, path, sink);
+      }
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, depth, point, radius, accept, result, path, sink);
+      }
+    } else {
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, depth, point, radius, accept, result, path, sink);
+      }
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, depth, point, radius, accept, result, path, sink);
+      }
+    }
+    return radius;
+  }
+
+  // Version of search that stays within budget and counts its work.
+  private double search(int lo, int hi, int depth, T point, double radius, IntPredicate accept,
+                        NeighborBuffer result, double[] path, SearchLimits.Budget budget) {
+    if (lo >= hi || budget.isExhausted()) {
+      return radius;
+    }
+
+    SearchStats.Counters counters = budget.counters;
+    double nodeRadius = radii[lo];
+    if (Double.isNaN(nodeRadius)) {
+      for (int i = lo; i < hi; i++) {
+        if (path != null && !budget.visit(pivotBound(i, depth, path), radius, result.isFull())) {
+          continue;
+        }
+        counters.nodesVisited++;
+        if (!accept.test(i)) {
+          continue;
+        }
+        if (!budget.spend()) {
+          return radius;
+        }
+        double d = distance(point, get(i), radius);
+        if (d <= radius && result.offer(i, d)) {
+          counters.heapUpdates++;
+          if (result.isFull()) {
+            radius = result.maxDistance();
+          }
+        }
+      }
+      return radius;
+    }
+
+    counters.nodesVisited++;
+    if (!budget.spend()) {
+      return radius;
+    }
+    double d = distance(point, get(lo), reach(lo) + radius);
+    if (d <= radius && accept.test(lo) && result.offer(lo, d)) {
+      counters.heapUpdates++;
+      if (result.isFull()) {
+        radius = result.maxDistance();
+      }
+    }
+    if (path != null) {
+      path[depth] = d;
+    }
+
+    double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+    double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+
+    // Empty subtrees are skipped without counting them as pruned.
+    int mid = outside[lo];
+    boolean hasInside = lo + 1 < mid;
+    boolean hasOutside = mid < hi;
+    depth++;
+    if (insideBound <= outsideBound) {
+      if (hasInside && budget.visit(insideBound, radius, result.isFull())) {
+        radius = search(lo + 1, mid, depth, point, radius, accept, result, path, budget);
+      }
+      if (hasOutside && budget.visit(outsideBound, radius, result.isFull())) {
+        radius = search(mid, hi, depth, point, radius, accept, result, path, budget);
+      }
+    } else {
+      if (hasOutside && budget.visit(outsideBound, radius, result.isFull())) {
+        radius = search(mid, hi, depth, point, radius, accept, result, path, budget);
+      }
+      if (hasInside && budget.visit(insideBound, radius, result.isFull())) {
+        radius = search(lo + 1, mid, depth, point, radius, accept, result, path, budget);
+      }
+    }
+    return radius;
+  }
+
+  // Version of search that skips subtrees without points that match filter.
+  private double search(int lo, int hi, int depth, T point, double radius, AttributeFilter filter,
+                        IntPredicate accept, NeighborBuffer result, double[] path) {
+    if (lo >= hi || !mayMatch(filter, lo)) {
+      return radius;
+    }
+
+    double nodeRadius = radii[lo];
+    if (Double.isNaN(nodeRadius)) {
+      for (int i = lo; i < hi; i++) {
+        if (!matches(filter, i) || path != null && pivotBound(i, depth, path) > radius
+          || !accept.test(i)) {
+          continue;
+        }
+        double d = distance(point, get(i), radius);
+        if (d <= radius && result.offer(i, d) && result.isFull()) {
+          radius = result.maxDistance();
+        }
+      }
+      return radius;
+    }
+
+    // The distance to the center is needed to search the children, even if
+    // the center itself does not match.
+    double d = distance(point, get(lo), reach(lo) + radius);
+    if (d <= radius && matches(filter, lo) && accept.test(lo) && result.offer(lo, d)
+      && result.isFull()) {
+      radius = result.maxDistance();
+    }
+    if (path != null) {
+      path[depth] = d;
+    }
+
+    double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+    double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+
+    int mid = outside[lo];
+    depth++;
+    if (insideBound <= outsideBound) {
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, depth, point, radius, filter, accept, result, path);
+      }
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, depth, point, radius, filter, accept, result, path);
+      }
+    } else {
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, depth, point, radius, filter, accept, result, path);
+      }
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, depth, point, radius, filter, accept, result, path);
+      }
+    }
+    return radius;
+  }
+
+  // Reports whether the point in slot i matches filter.
+  private boolean matches(AttributeFilter filter, int i) {
+    return filter.matches(categories == null ? -1L : categories[i],
+      keys == null ? Double.NEGATIVE_INFINITY : keys[i],
+      keys == null ? Double.POSITIVE_INFINITY : keys[i]);
+  }
+
+  // Reports whether the subtree rooted at slot i may hold points that match filter.
+  private boolean mayMatch(AttributeFilter filter, int i) {
+    return filter.matches(categories == null ? -1L : subtreeCategories[i],
+      keys == null ? Double.NEGATIVE_INFINITY : subtreeKeyMin[i],
+      keys == null ? Double.POSITIVE_INFINITY : subtreeKeyMax[i]);
+  }
+
+  // Distance from a query point to a point in the tree, where only distances
+  // up to threshold matter: larger ones may be reported as any value above
+  // threshold.
+  private double distance(T point, T other, double threshold) {
+    return bounded == null ? metric.distance(point, other) : bounded.distance(point, other, threshold);
+  }
+
+  // Distance from the center of internal node i to the farthest point in its
+  // subtree. If the query point is farther than reach(i) + radius from the
+  // center, the search prunes both subtrees, so that is the threshold for
+  // computing the distance to the center.
+  private double reach(int i) {
+    double out = outsideMax[i];
+    return Double.isNaN(out) ? insideMax[i] : Math.max(insideMax[i], out);
+  }
+
+  // Lower bound on the distance between the query point and the leaf point i,
+  // by the triangle inequality on their distances to i's ancestors.
+  private double pivotBound(int i, int depth, double[] path) {
+    double bound = 0;
+    int base = i * MAX_PIVOTS;
+    for (int a = 0, m = Math.min(depth, MAX_PIVOTS); a < m; a++) {
+      bound = Math.max(bound, abs(path[depth - 1 - a] - pivotDist[base + a]));
+    }
+    return bound;
+  }
+
+  // Upper bound on the distance between the query point and the leaf point i,
+  // by the triangle inequality through i's ancestors.
+  private double pivotUpperBound(int i, int depth, double[] path) {
+    double bound = Double.POSITIVE_INFINITY;
+    int base = i * MAX_PIVOTS;
+    for (int a = 0, m = Math.min(depth, MAX_PIVOTS); a < m; a++) {
+      bound = Math.min(bound, path[depth - 1 - a] + pivotDist[base + a]);
+    }
+    return bound;
+  }
+
+  /**
+   * Returns the point at the given index.
+   * <p>
+   * Indices run from 0 up to, but not including, size(). They are fixed when
+   * the tree is constructed and identify the points in a {@link NeighborBuffer}.
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    return (T) centers[index];
+  }
+
+  public int size() {
+    return centers.length;
+  }
+
+  /**
+   * Returns a uniform random sample, without replacement, of k points in the tree.
+   * <p>
+   * Takes O(k) expected time, independent of the size of the tree.
+   *
+   * @param k   Sample size, at most size().
+   * @param rnd Random number generator.
+   * @return The sampled points, in no particular order.
+   */
+  public List<T> sample(int k, SplittableRandom rnd) {
+    int n = size();
+    if (k < 0 || k > n) {
+      throw new IllegalArgumentException(String.format("cannot sample %d out of %d points", k, n));
+    }
+    // Floyd's algorithm (Bentley and Floyd, A sample of brilliance, 1987),
+    // which works because points have ranks given by get(int).
+    Set<Integer> indices = new HashSet<>(2 * k);
+    for (int j = n - k; j < n; j++) {
+      int i = rnd.nextInt(j + 1);
+      indices.add(indices.contains(i) ? j : i);
+    }
+    List<T> sample = new ArrayList<>(k);
+    indices.forEach(i -> sample.add(get(i)));
+    return sample;
+  }
+
+  // Raw access to the node arrays, for MappedVPTree.
+  double radius(int i) {
+    return radii[i];
+  }
+
+  int outsideStart(int i) {
+    return outside[i];
+  }
+
+  double insideMin(int i) {
+    return insideMin[i];
+  }
+
+  double insideMax(int i) {
+    return insideMax[i];
+  }
+
+  double outsideMax(int i) {
+    return outsideMax[i];
   }
 
   /**
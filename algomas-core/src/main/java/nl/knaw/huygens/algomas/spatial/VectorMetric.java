@@ -0,0 +1,150 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+/**
+ * Metrics on real vectors, for use with {@link VectorVPTree}.
+ * <p>
+ * Each metric computes distances between vectors stored at given offsets in
+ * arrays, so that a VectorVPTree can keep all its points in a single array.
+ * Except for {@link #ANGULAR}, the metrics stop early once the distance is
+ * known to exceed a threshold: they check the partial distance after every
+ * block of coordinates, keeping the inner loops simple.
+ */
+public enum VectorMetric {
+  /**
+   * Euclidean (L2) distance.
+   * <p>
+   * Internally, partial sums are compared to the squared threshold, so the
+   * square root is taken only once per distance. Squared Euclidean distance
+   * itself violates the triangle inequality and cannot be used for search.
+   */
+  EUCLIDEAN {
+    @Override
+    double distance(double[] a, int i, double[] b, int j, int dim, double threshold) {
+      double limit = threshold * threshold;
+      double sum = 0;
+      for (int start = 0; start < dim; start += BLOCK) {
+        int end = Math.min(start + BLOCK, dim);
+        for (int k = start; k < end; k++) {
+          double diff = a[i + k] - b[j + k];
+          sum += diff * diff;
+        }
+        // sqrt(sum) may round down to threshold, so check that before stopping.
+        if (sum > limit && Math.sqrt(sum) > threshold) {
+          break;
+        }
+      }
+      return Math.sqrt(sum);
+    }
+  },
+
+  /**
+   * Manhattan (L1, city block) distance.
+   */
+  MANHATTAN {
+    @Override
+    double distance(double[] a, int i, double[] b, int j, int dim, double threshold) {
+      double sum = 0;
+      for (int start = 0; start < dim; start += BLOCK) {
+        int end = Math.min(start + BLOCK, dim);
+        for (int k = start; k < end; k++) {
+          sum += Math.abs(a[i + k] - b[j + k]);
+        }
+        if (sum > threshold) {
+          break;
+        }
+      }
+      return sum;
+    }
+  },
+
+  /**
+   * Chebyshev (L-infinity, maximum) distance.
+   */
+  CHEBYSHEV {
+    @Override
+    double distance(double[] a, int i, double[] b, int j, int dim, double threshold) {
+      double max = 0;
+      for (int start = 0; start < dim; start += BLOCK) {
+        int end = Math.min(start + BLOCK, dim);
+        for (int k = start; k < end; k++) {
+          max = Math.max(max, Math.abs(a[i + k] - b[j + k]));
+        }
+        if (max > threshold) {
+          break;
+        }
+      }
+      return max;
+    }
+  },
+
+  /**
+   * Angular distance: the angle between two vectors, divided by pi.
+   * <p>
+   * This is a metric on directions, with values in [0, 1]. Vectors pointing
+   * the same way are at distance zero, even when their lengths differ. The
+   * zero vector is taken to be at distance 1/2 from all other vectors.
+   */
+  ANGULAR {
+    @Override
+    double distance(double[] a, int i, double[] b, int j, int dim, double threshold) {
+      double dot = 0;
+      double normA = 0;
+      double normB = 0;
+      for (int k = 0; k < dim; k++) {
+        double x = a[i + k];
+        double y = b[j + k];
+        dot += x * y;
+        normA += x * x;
+        normB += y * y;
+      }
+      if (normA == 0 || normB == 0) {
+        return normA == normB ? 0 : .5;
+      }
+      double cos = dot / Math.sqrt(normA * normB);
+      return Math.acos(Math.max(-1, Math.min(1, cos))) / Math.PI;
+    }
+  };
+
+  // Number of coordinates between early-exit checks.
+  private static final int BLOCK = 16;
+
+  /**
+   * Returns the distance between the vectors a[i:i+dim] and b[j:j+dim] if that
+   * is at most threshold, otherwise any value greater than threshold.
+   */
+  abstract double distance(double[] a, int i, double[] b, int j, int dim, double threshold);
+
+  /**
+   * Returns the distance between a and b.
+   */
+  public double distance(double[] a, double[] b) {
+    if (a.length != b.length) {
+      throw new IllegalArgumentException(
+        String.format("vectors of different dimension: %d, %d", a.length, b.length));
+    }
+    return distance(a, 0, b, 0, a.length, Double.POSITIVE_INFINITY);
+  }
+}
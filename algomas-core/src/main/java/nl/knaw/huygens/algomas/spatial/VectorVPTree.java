@@ -0,0 +1,411 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.io.Serializable;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.sqrt;
+
+/**
+ * A VP-tree for real vectors.
+ * <p>
+ * VectorVPTree is a counterpart of {@link VPTree} specialized to points that
+ * are double[] vectors of a fixed dimension, under one of the built-in
+ * {@link VectorMetric}s. All coordinates are stored in a single array, in the
+ * order in which searches visit the points, and distances are computed
+ * without calls through a generic {@link Metric}.
+ * <p>
+ * Points are identified by their position in the input, their id. Queries
+ * fill a {@link NeighborBuffer} with the ids of the neighbors found, and
+ * predicates restricting a search are given ids.
+ */
+public final class VectorVPTree implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Subtree size below which construction is sequential.
+  private static final int SEQUENTIAL_CUTOFF = 1 << 12;
+
+  private final VectorMetric metric;
+  private final int dim;
+
+  // The tree is laid out in preorder in parallel arrays, as in VPTree, with
+  // ids[i] the id of the point in slot i. Its coordinates are
+  // coords[i * dim : (i + 1) * dim]. slots is the inverse of ids.
+  private final double[] coords;
+  private final int[] ids;
+  private final int[] slots;
+  private final double[] radii;
+  private final int[] outside;
+  private final double[] insideMin;
+  private final double[] insideMax;
+  private final double[] outsideMax;
+
+  /**
+   * Construct VectorVPTree from given points.
+   *
+   * @param metric Metric (distance function).
+   * @param points Points to store in the tree, all of the same dimension.
+   *               Point i gets id i.
+   */
+  public VectorVPTree(VectorMetric metric, double[][] points) {
+    this(metric, points, new SplittableRandom());
+  }
+
+  public VectorVPTree(VectorMetric metric, double[][] points, SplittableRandom rnd) {
+    this(metric, flatten(points), points.length == 0 ? 0 : points[0].length, rnd);
+  }
+
+  /**
+   * Construct VectorVPTree from points stored back to back in an array.
+   *
+   * @param metric    Metric (distance function).
+   * @param points    Coordinates of the points: point i, which gets id i, is
+   *                  points[i * dimension : (i + 1) * dimension].
+   * @param dimension Dimension of the points.
+   * @param rnd       Random number generator.
+   */
+  public VectorVPTree(VectorMetric metric, double[] points, int dimension, SplittableRandom rnd) {
+    if (dimension < 0 || dimension == 0 && points.length > 0
+      || dimension > 0 && points.length % dimension != 0) {
+      throw new IllegalArgumentException(
+        String.format("%d coordinates do not make points of dimension %d", points.length, dimension));
+    }
+    this.metric = metric;
+    this.dim = dimension;
+    int n = dimension == 0 ? 0 : points.length / dimension;
+    ids = new int[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = i;
+    }
+    radii = new double[n];
+    outside = new int[n];
+    insideMin = new double[n];
+    insideMax = new double[n];
+    outsideMax = new double[n];
+
+    ForkJoinPool.commonPool().invoke(new ConstructTask(points, new double[n], rnd, 0, n));
+
+    coords = new double[points.length];
+    slots = new int[n];
+    for (int i = 0; i < n; i++) {
+      System.arraycopy(points, ids[i] * dim, coords, i * dim, dim);
+      slots[ids[i]] = i;
+    }
+  }
+
+  private static double[] flatten(double[][] points) {
+    if (points.length == 0) {
+      return new double[0];
+    }
+    int dim = points[0].length;
+    double[] flat = new double[points.length * dim];
+    for (int i = 0; i < points.length; i++) {
+      if (points[i].length != dim) {
+        throw new IllegalArgumentException(
+          String.format("point %d has dimension %d, expected %d", i, points[i].length, dim));
+      }
+      System.arraycopy(points[i], 0, flat, i * dim, dim);
+    }
+    return flat;
+  }
+
+  // Construction algorithm. Fills the slots [lo, hi), which initially hold
+  // the ids of the points in the subtree, in any order. dist is scratch space
+  // indexed by slot, shared among tasks that work on disjoint ranges.
+  @SuppressWarnings("serial")
+  private final class ConstructTask extends RecursiveAction {
+    private final double[] points;
+    private final double[] dist;
+    private final SplittableRandom rnd;
+    private final int lo;
+    private final int hi;
+
+    ConstructTask(double[] points, double[] dist, SplittableRandom rnd, int lo, int hi) {
+      this.points = points;
+      this.dist = dist;
+      this.rnd = rnd;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      int n = hi - lo;
+      if (n == 0) {
+        return;
+      }
+      if (n == 1) {
+        radii[lo] = Double.NaN;
+        outside[lo] = hi;
+        return;
+      }
+
+      swap(lo, selectVantage());
+      for (int i = lo + 1; i < hi; i++) {
+        dist[i] = distance(lo, i);
+      }
+
+      if (n == 2) {
+        // Single point in the inside subtree.
+        double d = dist[lo + 1];
+        set(lo, d, hi, d, d, Double.NaN);
+        radii[lo + 1] = Double.NaN;
+        outside[lo + 1] = hi;
+        return;
+      }
+
+      int mid = lo + 1 + (n - 1) / 2;
+      select(lo + 1, hi - 1, mid);
+      double insideMinimum = Double.POSITIVE_INFINITY;
+      double insideMaximum = Double.NEGATIVE_INFINITY;
+      for (int i = lo + 1; i < mid; i++) {
+        insideMinimum = Math.min(insideMinimum, dist[i]);
+        insideMaximum = Math.max(insideMaximum, dist[i]);
+      }
+      double outsideMaximum = Double.NEGATIVE_INFINITY;
+      for (int i = mid; i < hi; i++) {
+        outsideMaximum = Math.max(outsideMaximum, dist[i]);
+      }
+      set(lo, dist[mid], mid, insideMinimum, insideMaximum, outsideMaximum);
+
+      ConstructTask left = new ConstructTask(points, dist, rnd.split(), lo + 1, mid);
+      ConstructTask right = new ConstructTask(points, dist, rnd, mid, hi);
+      if (n < SEQUENTIAL_CUTOFF) {
+        left.compute();
+        right.compute();
+      } else {
+        invokeAll(left, right);
+      }
+    }
+
+    private double distance(int slot, int other) {
+      return metric.distance(points, ids[slot] * dim, points, ids[other] * dim, dim,
+        Double.POSITIVE_INFINITY);
+    }
+
+    // Returns the slot of a vantage point with large spread of distances to
+    // a sample of the other points. Like VPTree, this makes a linear number
+    // of distance computations.
+    private int selectVantage() {
+      int n = hi - lo;
+      int sampleSize = (int) sqrt(n);
+      int best = lo;
+      double bestSpread = Double.NEGATIVE_INFINITY;
+      double[] sample = new double[sampleSize];
+      for (int c = 0; c < sampleSize; c++) {
+        int candidate = lo + rnd.nextInt(n);
+        double mean = 0;
+        for (int s = 0; s < sampleSize; s++) {
+          sample[s] = distance(candidate, lo + rnd.nextInt(n));
+          mean += sample[s];
+        }
+        mean /= sampleSize;
+        // spread = mean absolute deviation.
+        double spread = 0;
+        for (double d : sample) {
+          spread += abs(d - mean);
+        }
+        if (spread > bestSpread) {
+          best = candidate;
+          bestSpread = spread;
+        }
+      }
+      return best;
+    }
+
+    // Quickselect: partially sorts slots [left, right] on dist, so that the
+    // k'th slot holds the distance that would be there after sorting.
+    private void select(int left, int right, int k) {
+      while (right > left) {
+        swap(right, left + rnd.nextInt(right - left + 1));
+        double pivot = dist[right];
+        // Lomuto partition.
+        int p = left;
+        for (int j = left; j < right; j++) {
+          if (dist[j] <= pivot) {
+            swap(p++, j);
+          }
+        }
+        swap(p, right);
+        if (p == k) {
+          return;
+        } else if (k < p) {
+          right = p - 1;
+        } else {
+          left = p + 1;
+        }
+      }
+    }
+
+    private void swap(int i, int j) {
+      int id = ids[i];
+      ids[i] = ids[j];
+      ids[j] = id;
+      double d = dist[i];
+      dist[i] = dist[j];
+      dist[j] = d;
+    }
+
+    private void set(int i, double radius, int outsideStart, double insideMinimum,
+                     double insideMaximum, double outsideMaximum) {
+      radii[i] = radius;
+      outside[i] = outsideStart;
+      insideMin[i] = insideMinimum;
+      insideMax[i] = insideMaximum;
+      outsideMax[i] = outsideMaximum;
+    }
+  }
+
+  public VectorMetric getMetric() {
+    return metric;
+  }
+
+  /**
+   * Dimension of the points in this tree.
+   */
+  public int dimension() {
+    return dim;
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Returns a copy of the point with the given id.
+   */
+  public double[] get(int id) {
+    int slot = slots[id];
+    double[] point = new double[dim];
+    System.arraycopy(coords, slot * dim, point, 0, dim);
+    return point;
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point.
+   * <p>
+   * Stores the ids of the neighbors and their distances from the query point
+   * in result, sorted by increasing distance. Once result has grown to hold k
+   * neighbors, this method does not allocate memory.
+   *
+   * @param k      Number of neighbors to collect.
+   * @param point  Query point.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public void nearestNeighbors(int k, double[] point, NeighborBuffer result) {
+    nearestNeighbors(k, Double.POSITIVE_INFINITY, point, ALL, result);
+  }
+
+  /**
+   * Finds the k nearest neighbors of the given point, restricted to a search
+   * radius and a subset of the points in the tree.
+   *
+   * @param k      Number of neighbors to collect.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @param point  Query point.
+   * @param accept Predicate on ids that returned points must satisfy.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public void nearestNeighbors(int k, double radius, double[] point, IntPredicate accept,
+                               NeighborBuffer result) {
+    checkDimension(point);
+    result.reset(k);
+    search(0, ids.length, point, radius, accept, result);
+    result.sort();
+  }
+
+  /**
+   * Finds all points within the given radius of the given point.
+   * <p>
+   * Stores their ids and their distances from the query point in result,
+   * sorted by increasing distance.
+   *
+   * @param point  Query point.
+   * @param radius Neighbors must be at distance <= radius from the query point.
+   * @param result Buffer that receives the neighbors. Its previous contents are discarded.
+   */
+  public void withinRadius(double[] point, double radius, NeighborBuffer result) {
+    nearestNeighbors(Integer.MAX_VALUE, radius, point, ALL, result);
+  }
+
+  private static final IntPredicate ALL = i -> true;
+
+  private void checkDimension(double[] point) {
+    if (point.length != dim && ids.length > 0) {
+      throw new IllegalArgumentException(
+        String.format("query has dimension %d, expected %d", point.length, dim));
+    }
+  }
+
+  // Branch-and-bound search, as in VPTree.
+  private double search(int lo, int hi, double[] point, double radius, IntPredicate accept,
+                        NeighborBuffer result) {
+    if (lo >= hi) {
+      return radius;
+    }
+
+    double nodeRadius = radii[lo];
+    double threshold = Double.isNaN(nodeRadius) ? radius : reach(lo) + radius;
+    double d = metric.distance(coords, lo * dim, point, 0, dim, threshold);
+    if (d <= radius && accept.test(ids[lo]) && result.offer(ids[lo], d) && result.isFull()) {
+      radius = result.maxDistance();
+    }
+    if (Double.isNaN(nodeRadius)) {
+      return radius;
+    }
+
+    // NaN for an empty outside subtree, which makes all comparisons fail.
+    double insideBound = Math.max(d - insideMax[lo], insideMin[lo] - d);
+    double outsideBound = Math.max(d - outsideMax[lo], nodeRadius - d);
+
+    int mid = outside[lo];
+    if (insideBound <= outsideBound) {
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, point, radius, accept, result);
+      }
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, point, radius, accept, result);
+      }
+    } else {
+      if (outsideBound <= radius) {
+        radius = search(mid, hi, point, radius, accept, result);
+      }
+      if (insideBound <= radius) {
+        radius = search(lo + 1, mid, point, radius, accept, result);
+      }
+    }
+    return radius;
+  }
+
+  // Distance from the center of internal node i to the farthest point in its subtree.
+  private double reach(int i) {
+    double out = outsideMax[i];
+    return Double.isNaN(out) ? insideMax[i] : Math.max(insideMax[i], out);
+  }
+}
@@ -36,6 +36,7 @@ import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestBKTree extends BaseTestSpatialTree {
@@ -109,6 +110,70 @@ public class TestBKTree extends BaseTestSpatialTree {
       (1 - savingFactor) * WORDS.size() * QUERY_WORDS.size() * SEEDS.length);
   }
 
+  @Test
+  public void neighborBuffer() {
+    BKTree<String> tree = new BKTree<>(Levenshtein::distance, WORDS);
+    IntNeighborBuffer<String> buffer = new IntNeighborBuffer<>(1);
+    for (String query : QUERY_WORDS) {
+      tree.nearestNeighbors(7, query, buffer);
+      assertEquals(7, buffer.size());
+      assertEquals(query, buffer.point(0));
+
+      int[] expected = WORDS.stream().mapToInt(w -> Levenshtein.distance(query, w))
+                            .sorted().limit(7).toArray();
+      int[] actual = new int[buffer.size()];
+      for (int i = 0; i < buffer.size(); i++) {
+        actual[i] = buffer.distance(i);
+        assertEquals(actual[i], Levenshtein.distance(query, buffer.point(i)));
+      }
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void countAndAny() {
+    BKTree<String> tree = new BKTree<>(Levenshtein::distance, WORDS);
+    for (String query : QUERY_WORDS) {
+      for (int radius : new int[]{0, 1, 3, 8, 1000}) {
+        long expected = WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= radius).count();
+        assertEquals(expected, tree.countWithinRadius(query, radius));
+        assertEquals(expected > 0, tree.anyWithinRadius(query, radius));
+      }
+    }
+    assertTrue(tree.contains("foo"));
+    assertFalse(tree.contains("no such word in the list"));
+
+    BKTree<String> unique = new BKTree<>(Levenshtein::distance, false);
+    unique.addAll(WORDS);
+    unique.addAll(WORDS);
+    assertEquals(new HashSet<>(WORDS).size(), unique.countWithinRadius("", Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void boundedMetric() {
+    BoundedIntMetric<String> levenshtein = BoundedIntMetric.levenshtein();
+    for (String a : QUERY_WORDS) {
+      for (String b : WORDS.subList(0, 200)) {
+        int d = Levenshtein.distance(a, b);
+        for (int threshold : new int[]{0, 1, 3, 20, Integer.MAX_VALUE}) {
+          int bounded = levenshtein.distance(a, b, threshold);
+          assertTrue(d <= threshold ? bounded == d : bounded > threshold);
+        }
+      }
+    }
+
+    BKTree<String> plain = new BKTree<>(Levenshtein::distance, WORDS);
+    BKTree<String> bounded = new BKTree<>(levenshtein, WORDS);
+    for (String query : QUERY_WORDS) {
+      assertArrayEquals(
+        plain.nearestNeighbors(6, query).mapToInt(e -> e.distance).toArray(),
+        bounded.nearestNeighbors(6, query).mapToInt(e -> e.distance).toArray());
+      assertEquals(plain.withinRadius(query, 3).map(e -> e.point).collect(Collectors.toSet()),
+        bounded.withinRadius(query, 3).map(e -> e.point).collect(Collectors.toSet()));
+      assertEquals(plain.countWithinRadius(query, 4), bounded.countWithinRadius(query, 4));
+    }
+  }
+
   @Test
   public void empty() {
     BKTree<Integer> tree = new BKTree<>((x, y) -> (int) Math.abs(x - y), Collections.emptyList());
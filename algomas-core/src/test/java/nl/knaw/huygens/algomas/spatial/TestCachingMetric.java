@@ -0,0 +1,141 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCachingMetric extends BaseTestSpatialTree {
+  @Test
+  public void vpTree() {
+    AtomicLong calls = new AtomicLong();
+    CachingMetric<String> metric = new CachingMetric<>((a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    }, 1 << 16);
+    VPTree<String> plain = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(3));
+    VPTree<String> cached = new VPTree<>(metric, WORDS, new SplittableRandom(3));
+
+    for (int round = 0; round < 2; round++) {
+      long before = calls.get();
+      for (String query : QUERY_WORDS) {
+        assertArrayEquals(plain.nearestNeighbors(5, query).mapToDouble(e -> e.distance).toArray(),
+          cached.nearestNeighbors(5, query).mapToDouble(e -> e.distance).toArray(), 0);
+      }
+      if (round == 1) {
+        // Second time around, everything comes from the cache.
+        assertEquals(before, calls.get());
+      }
+    }
+    assertEquals(calls.get(), metric.misses());
+    assertTrue(metric.hits() > 0);
+    assertTrue(metric.hitRate() > 0 && metric.hitRate() < 1);
+    assertTrue(metric.size() <= 1 << 16);
+
+    metric.clear();
+    assertEquals(0, metric.size());
+    assertEquals(0, metric.hits());
+    assertTrue(Double.isNaN(metric.hitRate()));
+  }
+
+  @Test
+  public void unordered() {
+    AtomicLong calls = new AtomicLong();
+    CachingMetric<String> metric = new CachingMetric<>((a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    }, 10);
+    assertEquals(3, metric.distance("kitten", "sitting"), 0);
+    assertEquals(3, metric.distance("sitting", "kitten"), 0);
+    assertEquals(1, calls.get());
+    assertEquals(1, metric.hits());
+  }
+
+  @Test
+  public void eviction() {
+    CachingMetric<String> metric = new CachingMetric<>(Levenshtein::distance, 100);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < WORDS.size(); i += 7) {
+        for (String query : QUERY_WORDS) {
+          String w = WORDS.get(i);
+          assertEquals(Levenshtein.distance(w, query), metric.distance(w, query), 0);
+          assertTrue(metric.size() <= 100);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bounded() {
+    AtomicLong calls = new AtomicLong();
+    BoundedMetric<String> levenshtein = BoundedMetric.levenshtein();
+    CachingMetric<String> metric = new CachingMetric<>((BoundedMetric<String>) (a, b, t) -> {
+      calls.incrementAndGet();
+      return levenshtein.distance(a, b, t);
+    }, 10);
+
+    // Abandoned computations give lower bounds, which are not cached.
+    assertTrue(metric.distance("kitten", "sitting", 1) > 1);
+    assertEquals(0, metric.size());
+    assertEquals(3, metric.distance("kitten", "sitting", 5), 0);
+    assertEquals(3, metric.distance("kitten", "sitting", 1), 0);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void bkTree() {
+    CachingIntMetric<String> metric = new CachingIntMetric<>(BoundedIntMetric.levenshtein(), 1 << 12);
+    BKTree<String> plain = new BKTree<>(Levenshtein::distance, WORDS);
+    BKTree<String> cached = new BKTree<>(metric, WORDS);
+    for (int round = 0; round < 2; round++) {
+      for (String query : QUERY_WORDS) {
+        assertArrayEquals(plain.nearestNeighbors(4, query).mapToDouble(e -> e.distance).toArray(),
+          cached.nearestNeighbors(4, query).mapToDouble(e -> e.distance).toArray(), 0);
+      }
+    }
+    assertTrue(metric.hits() > 0);
+    assertTrue(metric.size() <= 1 << 12);
+  }
+
+  @Test
+  public void concurrent() {
+    CachingMetric<String> metric = new CachingMetric<>(Levenshtein::distance, 500);
+    int n = WORDS.size();
+    IntStream.range(0, 20000).parallel().forEach(i -> {
+      String a = WORDS.get(i % n);
+      String b = WORDS.get((i * 31) % n);
+      assertEquals(Levenshtein.distance(a, b), metric.distance(a, b), 0);
+    });
+    assertTrue(metric.size() <= 500);
+    assertEquals(20000, metric.hits() + metric.misses());
+  }
+}
@@ -0,0 +1,98 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDynamicVPTree extends BaseTestSpatialTree {
+  private static List<String> sorted(Stream<String> s) {
+    return s.sorted().collect(Collectors.toList());
+  }
+
+  @Test
+  public void insertRemove() {
+    Random rnd = new Random(0xd1);
+    DynamicVPTree<String> tree = new DynamicVPTree<>(Levenshtein::distance, new SplittableRandom(4));
+    List<String> expected = new ArrayList<>();
+
+    for (int round = 0; round < 3; round++) {
+      for (String w : WORDS) {
+        tree.add(w);
+        expected.add(w);
+      }
+      Collections.shuffle(expected, rnd);
+      for (String w : new ArrayList<>(expected.subList(0, expected.size() / 3))) {
+        assertTrue(tree.remove(w));
+        expected.remove(w);
+      }
+      assertEquals(expected.size(), tree.size());
+      assertEquals(sorted(expected.stream()), sorted(tree.stream()));
+
+      for (String query : QUERY_WORDS) {
+        double[] nn = expected.stream().mapToDouble(w -> Levenshtein.distance(query, w))
+                              .sorted().limit(6).toArray();
+        assertArrayEquals(nn,
+          tree.nearestNeighbors(6, query).mapToDouble(e -> e.distance).toArray(), 0);
+        tree.nearestNeighbors(6, query).forEach(e -> {
+          assertTrue(expected.contains(e.point));
+          assertEquals(Levenshtein.distance(query, e.point), e.distance, 0);
+        });
+
+        assertEquals(sorted(expected.stream().filter(w -> Levenshtein.distance(query, w) <= 3)),
+          sorted(tree.withinRadius(query, 3).map(e -> e.point)));
+      }
+    }
+  }
+
+  @Test
+  public void duplicates() {
+    DynamicVPTree<String> tree = new DynamicVPTree<>(Levenshtein::distance, WORDS);
+    for (int i = 0; i < 3; i++) {
+      tree.add("foo");
+    }
+    assertEquals(4, tree.withinRadius("foo", 0).count());
+    assertTrue(tree.remove("foo"));
+    assertTrue(tree.remove("foo"));
+    assertEquals(2, tree.withinRadius("foo", 0).count());
+    assertTrue(tree.contains("foo"));
+    assertTrue(tree.remove("foo"));
+    assertTrue(tree.remove("foo"));
+    assertFalse(tree.contains("foo"));
+    assertFalse(tree.remove("foo"));
+    assertEquals(WORDS.size() - 1, tree.size());
+  }
+}
@@ -0,0 +1,105 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.awt.geom.Point2D;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestKnnGraph extends BaseTestSpatialTree {
+  @Test
+  public void exact() {
+    List<String> words = WORDS.subList(0, Math.min(WORDS.size(), 1000));
+    exact(words, new VPTree<>(Levenshtein::distance, words, new SplittableRandom(6), 4));
+    // Bounded distances above their threshold must not end up in the graph.
+    exact(words, new VPTree<>(BoundedMetric.levenshtein(), words, new SplittableRandom(7), 4));
+  }
+
+  private static void exact(List<String> words, VPTree<String> tree) {
+    int k = 5;
+    KnnGraph graph = KnnGraph.exact(tree, k);
+    assertEquals(tree.size(), graph.size());
+    assertEquals(k, graph.k());
+    assertEquals(tree.size() * k, graph.neighborArray().length);
+
+    for (int i = 0; i < tree.size(); i++) {
+      String point = tree.get(i);
+      double[] expected = words.stream().mapToDouble(w -> Levenshtein.distance(point, w))
+                               .sorted().skip(1).limit(k).toArray();
+      double[] actual = new double[k];
+      Set<Integer> seen = new HashSet<>();
+      for (int r = 0; r < k; r++) {
+        int j = graph.neighbor(i, r);
+        assertTrue(j != i && seen.add(j));
+        actual[r] = graph.distance(i, r);
+        assertEquals(Levenshtein.distance(point, tree.get(j)), actual[r], 0);
+      }
+      assertArrayEquals(expected, actual, 0);
+    }
+  }
+
+  @Test
+  public void descent() {
+    Random rnd = new Random(0xde5);
+    List<Point2D> points = Stream.generate(() -> new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(2000).collect(Collectors.toList());
+    int k = 10;
+    KnnGraph graph = KnnGraph.descent(points, Point2D::distance, k, new SplittableRandom(2));
+
+    // Count the neighbors found that are among the true k nearest.
+    int found = 0;
+    for (int i = 0; i < points.size(); i++) {
+      Point2D p = points.get(i);
+      double[] truth = points.stream().mapToDouble(p::distance).sorted().toArray();
+      for (int r = 0; r < k; r++) {
+        assertEquals(p.distance(points.get(graph.neighbor(i, r))), graph.distance(i, r), 0);
+        if (graph.distance(i, r) <= truth[k]) {
+          found++;
+        }
+      }
+    }
+    double recall = (double) found / (points.size() * k);
+    assertTrue("recall " + recall, recall > .9);
+  }
+
+  @Test
+  public void small() {
+    List<String> words = Collections.singletonList("foo");
+    assertEquals(0, KnnGraph.exact(new VPTree<>(Levenshtein::distance, words), 3).k());
+    KnnGraph graph = KnnGraph.descent(QUERY_WORDS.subList(0, 3), Levenshtein::distance, 5, new SplittableRandom());
+    assertEquals(2, graph.k());
+  }
+}
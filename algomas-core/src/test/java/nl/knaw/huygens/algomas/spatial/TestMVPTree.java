@@ -0,0 +1,109 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMVPTree extends BaseTestSpatialTree {
+  @Test
+  public void strings() {
+    int[][] params = {{1, 2, 1}, {2, 3, 16}, {3, 2, 4}, {2, 5, 50}};
+    for (int[] p : params) {
+      MVPTree<String> tree = new MVPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(p[2]),
+        p[0], p[1], p[2]);
+      assertEquals(WORDS.size(), tree.size());
+      assertEquals(new HashSet<>(WORDS), tree.stream().collect(Collectors.toSet()));
+
+      for (String query : QUERY_WORDS) {
+        double[] nn = WORDS.stream().mapToDouble(w -> Levenshtein.distance(query, w))
+                           .sorted().limit(7).toArray();
+        assertArrayEquals(nn, tree.nearestNeighbors(7, query).mapToDouble(e -> e.distance).toArray(), 0);
+
+        assertEquals(
+          WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= 4).collect(Collectors.toSet()),
+          tree.withinRadius(query, 4).map(e -> e.point).collect(Collectors.toSet()));
+
+        assertTrue(tree.nearestNeighbors(5, 3, query, w -> w.length() % 2 == 0)
+                       .allMatch(e -> e.distance <= 3 && e.point.length() % 2 == 0));
+      }
+    }
+  }
+
+  @Test
+  public void vectors() {
+    Random rnd = new Random(0x3f7);
+    List<double[]> points = Stream.generate(() -> rnd.doubles(4).toArray())
+                                  .limit(2000).collect(Collectors.toList());
+    int[] calls = new int[1];
+    Metric<double[]> metric = (a, b) -> {
+      calls[0]++;
+      double sum = 0;
+      for (int i = 0; i < a.length; i++) {
+        sum += (a[i] - b[i]) * (a[i] - b[i]);
+      }
+      return Math.sqrt(sum);
+    };
+    MVPTree<double[]> tree = new MVPTree<>(metric, points);
+    VPTree<double[]> vp = new VPTree<>(metric, points, new SplittableRandom(2));
+
+    NeighborBuffer buffer = new NeighborBuffer();
+    for (int i = 0; i < 50; i++) {
+      double[] query = rnd.doubles(4).toArray();
+      calls[0] = 0;
+      tree.nearestNeighbors(10, query, buffer);
+      assertTrue(calls[0] < points.size());
+      assertArrayEquals(
+        vp.nearestNeighbors(10, query).mapToDouble(e -> e.distance).toArray(),
+        tree.nearestNeighbors(10, query).mapToDouble(e -> e.distance).toArray(), 1e-12);
+      for (int j = 0; j < buffer.size(); j++) {
+        assertEquals(metric.distance(query, tree.get(buffer.index(j))), buffer.distance(j), 0);
+      }
+    }
+  }
+
+  @Test
+  public void empty() {
+    MVPTree<String> tree = new MVPTree<>(Levenshtein::distance, Collections.emptyList());
+    assertTrue(tree.isEmpty());
+    assertEquals(0, tree.nearestNeighbors(3, "foo").count());
+    assertEquals(0, tree.withinRadius("foo", 10).count());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badArity() {
+    new MVPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(), 2, 1, 16);
+  }
+}
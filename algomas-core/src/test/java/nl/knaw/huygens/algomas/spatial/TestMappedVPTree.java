@@ -0,0 +1,251 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMappedVPTree extends BaseTestSpatialTree {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void strings() throws IOException {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(42));
+    Path path = tmp.newFile().toPath();
+    MappedVPTree.write(tree, PointCodec.utf8(), path);
+
+    MappedVPTree<String> mapped = MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8());
+    assertEquals(tree.size(), mapped.size());
+    for (int i = 0; i < tree.size(); i++) {
+      assertEquals(tree.get(i), mapped.get(i));
+    }
+    assertEquals(new HashSet<>(WORDS), mapped.stream().collect(Collectors.toSet()));
+
+    NeighborBuffer expected = new NeighborBuffer();
+    NeighborBuffer actual = new NeighborBuffer();
+    for (String query : QUERY_WORDS) {
+      tree.nearestNeighbors(5, query, expected);
+      mapped.nearestNeighbors(5, query, actual);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.distance(i), actual.distance(i), 0);
+      }
+
+      assertEquals(tree.withinRadius(query, 4).map(e -> e.point).collect(Collectors.toSet()),
+        mapped.withinRadius(query, 4).map(e -> e.point).collect(Collectors.toSet()));
+    }
+  }
+
+  @Test
+  public void vectors() throws IOException {
+    Random rnd = new Random(0x3a9);
+    List<double[]> points = Stream.generate(() -> rnd.doubles(3).toArray())
+                                  .limit(500).collect(Collectors.toList());
+    Metric<double[]> metric = (a, b) -> {
+      double sum = 0;
+      for (int i = 0; i < a.length; i++) {
+        sum += (a[i] - b[i]) * (a[i] - b[i]);
+      }
+      return Math.sqrt(sum);
+    };
+    VPTree<double[]> tree = new VPTree<>(metric, points, new SplittableRandom(1));
+    Path path = tmp.newFile().toPath();
+    MappedVPTree.write(tree, PointCodec.doubles(), path);
+    MappedVPTree<double[]> mapped = MappedVPTree.open(path, metric, PointCodec.doubles());
+
+    for (int i = 0; i < 20; i++) {
+      double[] query = rnd.doubles(3).toArray();
+      assertArrayEquals(
+        tree.nearestNeighbors(10, query).mapToDouble(e -> e.distance).toArray(),
+        mapped.nearestNeighbors(10, query).mapToDouble(e -> e.distance).toArray(), 0);
+    }
+  }
+
+  @Test
+  public void empty() throws IOException {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, Collections.emptyList());
+    Path path = tmp.newFile().toPath();
+    MappedVPTree.write(tree, PointCodec.utf8(), path);
+    MappedVPTree<String> mapped = MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8());
+    assertTrue(mapped.isEmpty());
+    assertEquals(0, mapped.nearestNeighbors(3, "foo").count());
+  }
+
+  @Test
+  public void sameWork() throws IOException {
+    AtomicInteger calls = new AtomicInteger();
+    BoundedMetric<String> metric = (a, b, threshold) -> {
+      calls.incrementAndGet();
+      return BoundedMetric.levenshtein().distance(a, b, threshold);
+    };
+    for (int bucketSize : new int[]{1, 6}) {
+      VPTree<String> tree = new VPTree<>(metric, WORDS, new SplittableRandom(8), bucketSize);
+      Path path = tmp.newFile().toPath();
+      MappedVPTree.write(tree, PointCodec.utf8(), path);
+      MappedVPTree<String> mapped = MappedVPTree.open(path, metric, PointCodec.utf8());
+
+      NeighborBuffer expected = new NeighborBuffer();
+      NeighborBuffer actual = new NeighborBuffer();
+      for (String query : QUERY_WORDS) {
+        calls.set(0);
+        tree.nearestNeighbors(5, query, expected);
+        int treeCalls = calls.get();
+        calls.set(0);
+        mapped.nearestNeighbors(5, query, actual);
+        if (bucketSize == 1) {
+          // Same algorithm, same bounds.
+          assertEquals(treeCalls, calls.get());
+        }
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.distance(i), actual.distance(i), 0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void corrupt() throws IOException {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(42));
+    Path path = tmp.newFile().toPath();
+    MappedVPTree.write(tree, PointCodec.utf8(), path);
+    byte[] bytes = Files.readAllBytes(path);
+
+    Path truncated = tmp.newFile().toPath();
+    Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 8));
+    assertOpenFails(truncated, "truncated VP-tree file");
+
+    // payloadStart inside the node arrays.
+    Path corrupt = tmp.newFile().toPath();
+    byte[] header = bytes.clone();
+    ByteBuffer.wrap(header).putLong(16, MappedVPTree.HEADER_SIZE);
+    Files.write(corrupt, header);
+    assertOpenFails(corrupt, "corrupt VP-tree file header");
+  }
+
+  private static void assertOpenFails(Path path, String message) {
+    try {
+      MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8());
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals(message, e.getMessage());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void notATree() throws IOException {
+    Path path = tmp.newFile().toPath();
+    Files.write(path, new byte[100]);
+    MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8());
+  }
+
+  @Test
+  public void external() throws IOException {
+    Path dir = tmp.newFolder().toPath();
+    Path path = dir.resolve("tree");
+    MappedVPTree.builder(Levenshtein::distance, PointCodec.utf8())
+                .memoryLimit(50).sampleSize(40).seed(17).build(WORDS, path);
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(Collections.singletonList(path), files.collect(Collectors.toList()));
+    }
+
+    MappedVPTree<String> mapped = MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8());
+    assertEquals(WORDS.size(), mapped.size());
+    assertEquals(WORDS.stream().sorted().collect(Collectors.toList()),
+      mapped.stream().sorted().collect(Collectors.toList()));
+
+    for (String query : QUERY_WORDS) {
+      double[] expected = WORDS.stream().mapToDouble(w -> Levenshtein.distance(query, w))
+                               .sorted().limit(6).toArray();
+      assertArrayEquals(expected, mapped.nearestNeighbors(6, query).mapToDouble(e -> e.distance).toArray(), 0);
+      assertEquals(WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= 3).count(),
+        mapped.withinRadius(query, 3).count());
+    }
+  }
+
+  @Test
+  public void externalCleanup() throws IOException {
+    Path temp = tmp.newFolder().toPath();
+    Path path = tmp.newFolder().toPath().resolve("tree");
+    AtomicInteger calls = new AtomicInteger();
+    Metric<String> failing = (a, b) -> {
+      if (calls.incrementAndGet() > 2000) {
+        throw new IllegalStateException("metric failed");
+      }
+      return Levenshtein.distance(a, b);
+    };
+    try {
+      MappedVPTree.builder(failing, PointCodec.utf8()).tempDirectory(temp)
+                  .memoryLimit(50).sampleSize(40).seed(17).build(WORDS, path);
+      fail("expected exception");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try (Stream<Path> files = Files.list(temp)) {
+      assertEquals(0, files.count());
+    }
+
+    // The tree file can't be created.
+    try {
+      MappedVPTree.builder(Levenshtein::distance, PointCodec.utf8()).tempDirectory(temp)
+                  .build(WORDS, path.resolveSibling("missing").resolve("tree"));
+      fail("expected exception");
+    } catch (NoSuchFileException e) {
+      // expected
+    }
+    try (Stream<Path> files = Files.list(temp)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void externalEmpty() throws IOException {
+    Path path = tmp.newFile().toPath();
+    MappedVPTree.builder(Levenshtein::distance, PointCodec.utf8())
+                .build(Collections.<String>emptyList(), path);
+    assertTrue(MappedVPTree.open(path, Levenshtein::distance, PointCodec.utf8()).isEmpty());
+  }
+}
@@ -0,0 +1,107 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSearchStats extends BaseTestSpatialTree {
+  @Test
+  public void vpTree() {
+    AtomicLong calls = new AtomicLong();
+    VPTree<String> tree = new VPTree<>((a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    }, WORDS, new SplittableRandom(12), 4);
+
+    SearchStats stats = new SearchStats();
+    NeighborBuffer plain = new NeighborBuffer();
+    NeighborBuffer instrumented = new NeighborBuffer();
+    instrumented.setStats(stats);
+
+    long total = 0;
+    for (String query : QUERY_WORDS) {
+      tree.nearestNeighbors(5, query, plain);
+      assertNull(plain.lastQueryStats());
+
+      calls.set(0);
+      tree.nearestNeighbors(5, query, instrumented);
+      SearchStats.Snapshot last = instrumented.lastQueryStats();
+      assertEquals(1, last.getQueries());
+      assertEquals(calls.get(), last.getDistanceCalls());
+      // Every visited node costs one distance call; visited and pruned
+      // subtrees are disjoint and non-empty.
+      assertEquals(last.getNodesVisited(), last.getDistanceCalls());
+      assertTrue(last.getHeapUpdates() >= 5);
+      assertTrue(last.getPruned() > 0);
+      assertTrue(last.getNodesVisited() + last.getPruned() <= WORDS.size());
+      total += last.getDistanceCalls();
+
+      assertEquals(plain.size(), instrumented.size());
+      for (int i = 0; i < plain.size(); i++) {
+        assertEquals(plain.distance(i), instrumented.distance(i), 0);
+      }
+    }
+
+    SearchStats.Snapshot all = stats.snapshot();
+    assertEquals(QUERY_WORDS.size(), all.getQueries());
+    assertEquals(total, all.getDistanceCalls());
+    assertTrue(all.pruneRatio() > 0 && all.pruneRatio() < 1);
+
+    stats.reset();
+    assertEquals(0, stats.snapshot().getQueries());
+  }
+
+  @Test
+  public void bkTree() {
+    AtomicLong calls = new AtomicLong();
+    BKTree<String> tree = new BKTree<>((a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    }, WORDS);
+
+    SearchStats stats = new SearchStats();
+    IntNeighborBuffer<String> buffer = new IntNeighborBuffer<>();
+    buffer.setStats(stats);
+    for (String query : QUERY_WORDS) {
+      calls.set(0);
+      tree.nearestNeighbors(3, query, buffer);
+      SearchStats.Snapshot last = buffer.lastQueryStats();
+      assertEquals(calls.get(), last.getDistanceCalls());
+      assertEquals(last.getNodesVisited(), last.getDistanceCalls());
+      assertEquals(3, buffer.size());
+    }
+    assertEquals(QUERY_WORDS.size(), stats.snapshot().getQueries());
+
+    buffer.setStats(null);
+    tree.nearestNeighbors(3, "foo", buffer);
+    assertNull(buffer.lastQueryStats());
+  }
+}
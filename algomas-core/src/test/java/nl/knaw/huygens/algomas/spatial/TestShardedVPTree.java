@@ -0,0 +1,95 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import nl.knaw.huygens.algomas.nlp.Levenshtein;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestShardedVPTree extends BaseTestSpatialTree {
+  private static double[] nearest(Stream<String> points, String query, int k) {
+    return points.mapToDouble(w -> Levenshtein.distance(query, w)).sorted().limit(k).toArray();
+  }
+
+  private static double[] distances(Stream<VPTree.Entry<String>> entries) {
+    return entries.mapToDouble(e -> e.distance).toArray();
+  }
+
+  @Test
+  public void partition() {
+    ShardedVPTree<String> tree = ShardedVPTree.partition(Levenshtein::distance, WORDS, 5);
+    assertEquals(5, tree.shardCount());
+    assertEquals(WORDS.size(), tree.size());
+    assertEquals(WORDS.stream().sorted().collect(Collectors.toList()),
+      tree.stream().sorted().collect(Collectors.toList()));
+
+    for (String query : QUERY_WORDS) {
+      assertArrayEquals(nearest(WORDS.stream(), query, 8), distances(tree.nearestNeighbors(8, query)), 0);
+      assertEquals(WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= 2).count(),
+        tree.withinRadius(query, 2).count());
+      assertArrayEquals(nearest(WORDS.stream().filter(w -> w.length() % 2 == 0), query, 4),
+        distances(tree.nearestNeighbors(4, Double.POSITIVE_INFINITY, query, w -> w.length() % 2 == 0)), 0);
+    }
+    assertEquals(0, tree.nearestNeighbors(0, "foo").count());
+
+    // A shard searched for no neighbors leaves the shared bound alone.
+    AtomicLong bound = new AtomicLong(Double.doubleToLongBits(2.5));
+    NeighborBuffer result = new NeighborBuffer();
+    tree.shard(0).parallelSearch(0, "foo", i -> true, result, bound, VPTree.PARALLEL_THRESHOLD);
+    assertEquals(0, result.size());
+    assertEquals(2.5, Double.longBitsToDouble(bound.get()), 0);
+  }
+
+  @Test
+  public void rebuild() {
+    List<List<String>> shards = new ArrayList<>();
+    int n = WORDS.size();
+    shards.add(WORDS.subList(0, n / 3));
+    shards.add(WORDS.subList(n / 3, 2 * n / 3));
+    shards.add(WORDS.subList(2 * n / 3, n));
+    ShardedVPTree<String> tree = new ShardedVPTree<>(Levenshtein::distance, shards, new ForkJoinPool(3));
+
+    tree.rebuildShard(1, QUERY_WORDS);
+    assertEquals(QUERY_WORDS.size(), tree.shard(1).size());
+    List<String> points = new ArrayList<>(shards.get(0));
+    points.addAll(QUERY_WORDS);
+    points.addAll(shards.get(2));
+    assertEquals(points.size(), tree.size());
+
+    for (String query : QUERY_WORDS) {
+      double[] found = distances(tree.nearestNeighbors(3, query));
+      assertArrayEquals(nearest(points.stream(), query, 3), found, 0);
+      assertEquals(0, found[0], 0);
+    }
+  }
+}
@@ -32,21 +32,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.IntStream.range;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestVPTree extends BaseTestSpatialTree {
@@ -119,6 +129,34 @@ public class TestVPTree extends BaseTestSpatialTree {
       (1 - savingFactor) * WORDS.size() * QUERY_WORDS.size() * SEEDS.length);
   }
 
+  @Test
+  public void buckets() {
+    int[] bucketSizes = {1, 2, 3, 8, 50};
+    int[] calls = new int[bucketSizes.length];
+    for (int b = 0; b < bucketSizes.length; b++) {
+      int bucketSize = bucketSizes[b];
+      CountingMetric bucketed = new CountingMetric(Levenshtein::distance);
+      VPTree<String> tree = new VPTree<>(bucketed, WORDS, new SplittableRandom(bucketSize), bucketSize);
+      assertEquals(WORDS.size(), tree.size());
+      assertEquals(new HashSet<>(WORDS), tree.stream().collect(Collectors.toSet()));
+
+      bucketed.calls.set(0);
+      for (String query : QUERY_WORDS) {
+        double[] expected = WORDS.stream().mapToDouble(w -> Levenshtein.distance(query, w))
+                                 .sorted().limit(10).toArray();
+        assertArrayEquals(expected,
+          tree.nearestNeighbors(10, query).mapToDouble(e -> e.distance).toArray(), 0);
+        assertArrayEquals(expected,
+          tree.nearestFirst(query).limit(10).mapToDouble(e -> e.distance).toArray(), 0);
+        assertEquals(WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= 5).count(),
+          tree.withinRadius(query, 5).count());
+      }
+      calls[b] = bucketed.calls.get();
+    }
+    // The pivot table should save distance computations.
+    assertTrue(calls[3] < calls[0]);
+  }
+
   @Test
   public void levenshteinPredicate() {
     Collection<String> words = asList("foo", "fool", "bar", "bark", "quuxly", "long string", "very long string");
@@ -155,6 +193,431 @@ public class TestVPTree extends BaseTestSpatialTree {
       reconstructed.stream().collect(Collectors.toSet()));
   }
 
+  @Test
+  public void bruteForce() {
+    Random rnd = new Random(0x5eed);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(2000).collect(Collectors.toList());
+    VPTree<Point2D> tree = new VPTree<>(Point2D::distance, points,
+      new SplittableRandom(7));
+    assertEquals(points.size(), tree.size());
+    assertEquals(new HashSet<>(points), tree.stream().collect(Collectors.toSet()));
+
+    for (int i = 0; i < 50; i++) {
+      Point2D query = new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian());
+      double[] expected = points.stream().mapToDouble(query::distance)
+                                .sorted().limit(10).toArray();
+      double[] actual = tree.nearestNeighbors(10, query)
+                            .mapToDouble(e -> e.distance).sorted().toArray();
+      assertArrayEquals(expected, actual, 0);
+    }
+  }
+
+  @Test
+  public void clustered() {
+    // Tight clusters far apart, where the shell bounds are much tighter
+    // than the median radii.
+    Random rnd = new Random(0xc105);
+    List<Point2D> points = Stream.generate(() -> {
+      int cluster = rnd.nextInt(5);
+      return new Point2D.Double(100 * cluster + .1 * rnd.nextGaussian(), .1 * rnd.nextGaussian());
+    }).limit(2000).collect(Collectors.toList());
+    AtomicInteger calls = new AtomicInteger();
+    VPTree<Point2D> tree = new VPTree<>((p, q) -> {
+      calls.incrementAndGet();
+      return p.distance(q);
+    }, points, new SplittableRandom(9));
+
+    calls.set(0);
+    for (int i = 0; i < 50; i++) {
+      Point2D query = points.get(rnd.nextInt(points.size()));
+      double[] expected = points.stream().mapToDouble(query::distance)
+                                .sorted().limit(5).toArray();
+      assertArrayEquals(expected,
+        tree.nearestNeighbors(5, query).mapToDouble(e -> e.distance).toArray(), 0);
+      assertEquals(points.stream().filter(p -> p.distance(query) <= .05).count(),
+        tree.withinRadius(query, .05).count());
+    }
+    assertTrue(calls.get() < 50 * points.size() / 10);
+  }
+
+  @Test
+  public void batch() {
+    Random rnd = new Random(0xba7c4);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(1000).collect(Collectors.toList());
+    VPTree<Point2D> tree = new VPTree<>(Point2D::distance, points,
+      new SplittableRandom(3));
+    List<Point2D> queries = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                  .limit(300).collect(Collectors.toList());
+
+    List<List<VPTree.Entry<Point2D>>> results = tree.batchNearestNeighbors(5, queries);
+    assertEquals(queries.size(), results.size());
+    for (int i = 0; i < queries.size(); i++) {
+      double[] expected = tree.nearestNeighbors(5, queries.get(i))
+                              .mapToDouble(e -> e.distance).sorted().toArray();
+      double[] actual = results.get(i).stream().mapToDouble(e -> e.distance).toArray();
+      assertArrayEquals(expected, actual, 0);
+    }
+  }
+
+  @Test
+  public void batchWithinRadius() {
+    Random rnd = new Random(0xba7c5);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(1000).collect(Collectors.toList());
+    VPTree<Point2D> tree = new VPTree<>(Point2D::distance, points,
+      new SplittableRandom(4), 4);
+    List<Point2D> queries = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                  .limit(300).collect(Collectors.toList());
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    List<List<VPTree.Entry<Point2D>>> results = tree.batchWithinRadius(queries, .3, pool);
+    pool.shutdown();
+    assertEquals(queries.size(), results.size());
+    for (int i = 0; i < queries.size(); i++) {
+      double[] expected = tree.withinRadius(queries.get(i), .3)
+                              .mapToDouble(e -> e.distance).sorted().toArray();
+      double[] actual = results.get(i).stream().mapToDouble(e -> e.distance).toArray();
+      assertArrayEquals(expected, actual, 0);
+    }
+  }
+
+  @Test
+  public void parallelSearch() {
+    Random rnd = new Random(0x9a7);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(3000).collect(Collectors.toList());
+    ForkJoinPool pool = new ForkJoinPool(4);
+    for (int bucketSize : new int[]{1, 8}) {
+      VPTree<Point2D> tree = new VPTree<>(Point2D::distance, points, new SplittableRandom(5), bucketSize);
+      NeighborBuffer expected = new NeighborBuffer();
+      NeighborBuffer actual = new NeighborBuffer();
+      for (int i = 0; i < 30; i++) {
+        Point2D query = new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian());
+        int k = 1 + rnd.nextInt(200);
+        double radius = i % 2 == 0 ? Double.POSITIVE_INFINITY : rnd.nextDouble();
+
+        tree.searchIndices(k, radius, query, x -> x % 3 != 0, expected);
+        tree.parallelSearch(k, radius, query, x -> x % 3 != 0, actual, pool, 16);
+        assertEquals(expected.size(), actual.size());
+        for (int j = 0; j < expected.size(); j++) {
+          assertEquals(expected.distance(j), actual.distance(j), 0);
+        }
+
+        assertEquals(
+          tree.withinRadius(query, radius).map(e -> e.point).collect(Collectors.toSet()),
+          tree.parallelWithinRadius(query, radius).map(e -> e.point).collect(Collectors.toSet()));
+      }
+
+      tree.parallelSearch(0, Double.POSITIVE_INFINITY, points.get(0), x -> true, actual, pool, 16);
+      assertEquals(0, actual.size());
+      assertEquals(0, tree.parallelNearestNeighbors(0, Double.POSITIVE_INFINITY, points.get(0), x -> true, pool)
+                          .count());
+    }
+    pool.shutdown();
+  }
+
+  @Test
+  public void approximate() {
+    Random rnd = new Random(0xe95);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(2000).collect(Collectors.toList());
+    AtomicInteger calls = new AtomicInteger();
+    VPTree<Point2D> tree = new VPTree<>((p, q) -> {
+      calls.incrementAndGet();
+      return p.distance(q);
+    }, points, new SplittableRandom(9), 4);
+
+    NeighborBuffer exact = new NeighborBuffer();
+    NeighborBuffer approx = new NeighborBuffer();
+    SearchLimits eps = SearchLimits.NONE.withEpsilon(.5);
+    SearchLimits capped = SearchLimits.NONE.withMaxDistanceCalls(15);
+    for (int i = 0; i < 50; i++) {
+      Point2D query = new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian());
+      tree.nearestNeighbors(10, query, exact);
+
+      tree.nearestNeighbors(10, query, SearchLimits.NONE, approx);
+      assertFalse(approx.isApproximate());
+      assertEquals(exact.size(), approx.size());
+
+      tree.nearestNeighbors(10, query, eps, approx);
+      assertEquals(exact.size(), approx.size());
+      for (int j = 0; j < exact.size(); j++) {
+        assertTrue(approx.distance(j) <= 1.5 * exact.distance(j));
+      }
+
+      calls.set(0);
+      tree.nearestNeighbors(10, query, capped, approx);
+      assertTrue(calls.get() <= 15);
+      assertTrue(approx.isApproximate());
+      assertTrue(approx.size() > 0);
+      for (int j = 1; j < approx.size(); j++) {
+        assertTrue(approx.distance(j - 1) <= approx.distance(j));
+      }
+    }
+
+    tree.nearestNeighbors(10, points.get(0), SearchLimits.NONE.withTimeout(0, TimeUnit.SECONDS), approx);
+    assertTrue(approx.isApproximate());
+
+    // The deadline is checked before the first distance call, also with a
+    // call cap that is not a multiple of the clock interval.
+    calls.set(0);
+    tree.nearestNeighbors(10, points.get(0), capped.withTimeout(0, TimeUnit.SECONDS), approx);
+    assertEquals(0, calls.get());
+    assertTrue(approx.isApproximate());
+
+    // Epsilon only applies once k neighbors have been found, so a range
+    // query that never fills its buffer stays exact.
+    for (int i = 0; i < 50; i++) {
+      Point2D query = new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian());
+      tree.nearestNeighbors(Integer.MAX_VALUE, .4, query, p -> true, SearchLimits.NONE, exact);
+      tree.nearestNeighbors(Integer.MAX_VALUE, .4, query, p -> true, eps, approx);
+      assertFalse(approx.isApproximate());
+      assertEquals(exact.size(), approx.size());
+    }
+  }
+
+  @Test
+  public void builder() {
+    Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+    Metric<String> metric = (a, b) -> {
+      threads.add(Thread.currentThread());
+      return Levenshtein.distance(a, b);
+    };
+
+    VPTree<String> sequential = VPTree.builder(metric).sequential().seed(77).bucketSize(4).build(WORDS);
+    assertEquals(Collections.singleton(Thread.currentThread()), threads);
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    VPTree<String> parallel = VPTree.builder(metric).pool(pool).sequentialCutoff(16).seed(77)
+                                    .bucketSize(4).build(WORDS);
+    pool.shutdown();
+    assertEquals(WORDS.size(), parallel.size());
+    for (int i = 0; i < WORDS.size(); i++) {
+      assertEquals(sequential.get(i), parallel.get(i));
+    }
+
+    VPTree<String> other = VPTree.builder(metric).seed(78).build(WORDS);
+    for (String query : QUERY_WORDS) {
+      assertArrayEquals(
+        sequential.nearestNeighbors(4, query).mapToDouble(e -> e.distance).toArray(),
+        other.nearestNeighbors(4, query).mapToDouble(e -> e.distance).toArray(), 0);
+    }
+  }
+
+  @Test
+  public void sample() {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(8));
+    SplittableRandom rnd = new SplittableRandom(0x5a);
+    int[] counts = new int[tree.size()];
+    Map<String, Integer> rank = new HashMap<>();
+    for (int i = 0; i < tree.size(); i++) {
+      rank.putIfAbsent(tree.get(i), i);
+    }
+    int k = 10;
+    int rounds = 20 * tree.size();
+    for (int round = 0; round < rounds; round++) {
+      List<String> sample = tree.sample(k, rnd);
+      assertEquals(k, sample.size());
+      assertTrue(WORDS.containsAll(sample));
+      sample.forEach(w -> counts[rank.get(w)]++);
+    }
+    // Each index is expected to be sampled 200 times.
+    for (int i = 0; i < counts.length; i++) {
+      if (rank.get(tree.get(i)) == i) {
+        assertTrue(counts[i] > 100);
+      }
+    }
+
+    assertEquals(new HashSet<>(WORDS), new HashSet<>(tree.sample(tree.size(), rnd)));
+    assertTrue(tree.sample(0, rnd).isEmpty());
+    assertTrue(tree.spliterator().hasCharacteristics(Spliterator.SUBSIZED));
+    assertEquals(WORDS.size(), tree.stream().parallel().count());
+  }
+
+  private static List<String> pairKeys(Stream<VPTree.Pair<String>> pairs, boolean unordered) {
+    return pairs.map(p -> {
+      String a = p.first;
+      String b = p.second;
+      if (unordered && a.compareTo(b) > 0) {
+        a = p.second;
+        b = p.first;
+      }
+      return a + "|" + b + "|" + p.distance;
+    }).sorted().collect(Collectors.toList());
+  }
+
+  @Test
+  public void selfJoin() {
+    List<String> words = WORDS.subList(0, Math.min(WORDS.size(), 1500));
+    List<VPTree.Pair<String>> expected = new ArrayList<>();
+    for (int i = 0; i < words.size(); i++) {
+      for (int j = i + 1; j < words.size(); j++) {
+        int d = Levenshtein.distance(words.get(i), words.get(j));
+        if (d <= 2) {
+          expected.add(new VPTree.Pair<>(words.get(i), words.get(j), d));
+        }
+      }
+    }
+    List<String> expectedKeys = pairKeys(expected.stream(), true);
+
+    for (int bucketSize : new int[]{1, 6}) {
+      AtomicInteger calls = new AtomicInteger();
+      VPTree<String> tree = new VPTree<>((a, b) -> {
+        calls.incrementAndGet();
+        return Levenshtein.distance(a, b);
+      }, words, new SplittableRandom(15), bucketSize);
+      calls.set(0);
+      assertEquals(expectedKeys, pairKeys(tree.selfJoin(2), true));
+      int full = calls.get();
+      assertTrue(full < words.size() * (words.size() - 1) / 2);
+
+      ForkJoinPool pool = new ForkJoinPool(3);
+      assertEquals(expectedKeys, pairKeys(tree.selfJoin(2, pool), true));
+      pool.shutdown();
+
+      // The stream is lazy, so taking a few pairs takes a fraction of the work.
+      calls.set(0);
+      assertEquals(5, tree.selfJoin(2).sequential().limit(5).collect(Collectors.toList()).size());
+      assertTrue(calls.get() < full / 10);
+    }
+  }
+
+  @Test
+  public void join() {
+    VPTree<String> words = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(3), 4);
+    VPTree<String> queries = new VPTree<>(Levenshtein::distance, QUERY_WORDS, new SplittableRandom(4));
+    List<String> expected = pairKeys(QUERY_WORDS.stream().flatMap(q -> WORDS.stream()
+      .filter(w -> Levenshtein.distance(q, w) <= 3)
+      .map(w -> new VPTree.Pair<>(q, w, (double) Levenshtein.distance(q, w)))), false);
+    assertEquals(expected, pairKeys(queries.join(words, 3), false));
+    ForkJoinPool pool = new ForkJoinPool(2);
+    assertEquals(expected, pairKeys(queries.join(words, 3, pool), false));
+    pool.shutdown();
+  }
+
+  @Test
+  public void countAndAny() {
+    for (int bucketSize : new int[]{1, 5}) {
+      AtomicInteger calls = new AtomicInteger();
+      VPTree<String> tree = new VPTree<>((a, b) -> {
+        calls.incrementAndGet();
+        return Levenshtein.distance(a, b);
+      }, WORDS, new SplittableRandom(31), bucketSize);
+      for (String query : QUERY_WORDS) {
+        for (double radius : new double[]{0, 2, 5, 30, 1000}) {
+          long expected = WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= radius).count();
+          calls.set(0);
+          assertEquals(expected, tree.countWithinRadius(query, radius));
+          if (radius == 1000) {
+            // The root's bounds cover everything.
+            assertTrue(calls.get() < 10);
+          }
+          assertEquals(expected > 0, tree.anyWithinRadius(query, radius));
+        }
+        assertTrue(tree.anyWithinRadius(query, 0));
+      }
+      assertEquals(0, new VPTree<>(Levenshtein::distance, Collections.<String>emptyList()).countWithinRadius("x", 5));
+    }
+  }
+
+  @Test
+  public void boundedMetric() {
+    BoundedMetric<String> levenshtein = BoundedMetric.levenshtein();
+    for (String a : QUERY_WORDS) {
+      for (String b : WORDS.subList(0, 200)) {
+        int d = Levenshtein.distance(a, b);
+        for (double threshold : new double[]{0, 1, 2.5, 4, 20, Double.POSITIVE_INFINITY}) {
+          double bounded = levenshtein.distance(a, b, threshold);
+          if (d <= threshold) {
+            assertEquals(d, bounded, 0);
+          } else {
+            assertTrue(bounded > threshold);
+          }
+        }
+      }
+    }
+
+    AtomicInteger finite = new AtomicInteger();
+    BoundedMetric<String> counting = (a, b, threshold) -> {
+      if (threshold < Double.POSITIVE_INFINITY) {
+        finite.incrementAndGet();
+      }
+      return levenshtein.distance(a, b, threshold);
+    };
+    for (int bucketSize : new int[]{1, 4}) {
+      VPTree<String> plain = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(50), bucketSize);
+      VPTree<String> bounded = new VPTree<>(counting, WORDS, new SplittableRandom(50), bucketSize);
+      finite.set(0);
+      for (String query : QUERY_WORDS) {
+        assertArrayEquals(
+          plain.nearestNeighbors(6, query).mapToDouble(e -> e.distance).toArray(),
+          bounded.nearestNeighbors(6, query).mapToDouble(e -> e.distance).toArray(), 0);
+        assertEquals(plain.withinRadius(query, 3).map(e -> e.point).collect(Collectors.toSet()),
+          bounded.withinRadius(query, 3).map(e -> e.point).collect(Collectors.toSet()));
+        assertEquals(plain.countWithinRadius(query, 4), bounded.countWithinRadius(query, 4));
+      }
+      assertTrue(finite.get() > 0);
+    }
+  }
+
+  @Test
+  public void nearestFirst() {
+    Random rnd = new Random(0xf125);
+    List<Point2D> points = Stream.generate(() ->
+      new Point2D.Double(rnd.nextGaussian(), rnd.nextGaussian()))
+                                 .limit(1000).collect(Collectors.toList());
+    AtomicInteger calls = new AtomicInteger();
+    VPTree<Point2D> tree = new VPTree<>((p, q) -> {
+      calls.incrementAndGet();
+      return p.distance(q);
+    }, points, new SplittableRandom(5));
+
+    Point2D query = new Point2D.Double(.1, -.2);
+    double[] expected = points.stream().mapToDouble(query::distance).sorted().toArray();
+
+    calls.set(0);
+    double[] actual = tree.nearestFirst(query).mapToDouble(e -> e.distance).toArray();
+    assertArrayEquals(expected, actual, 0);
+    assertEquals(points.size(), calls.get());
+
+    calls.set(0);
+    actual = tree.nearestFirst(query).limit(5).mapToDouble(e -> e.distance).toArray();
+    assertArrayEquals(Arrays.copyOf(expected, 5), actual, 0);
+    assertTrue(calls.get() < points.size() / 4);
+
+    assertEquals(0, new VPTree<Point2D>(Point2D::distance, Collections.emptyList())
+      .nearestFirst(query).count());
+  }
+
+  @Test
+  public void neighborBuffer() {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(11));
+    NeighborBuffer buffer = new NeighborBuffer(1);
+    for (String query : QUERY_WORDS) {
+      tree.nearestNeighbors(7, query, buffer);
+      assertEquals(7, buffer.size());
+      assertEquals(query, tree.get(buffer.index(0)));
+
+      double[] expected = WORDS.stream().mapToDouble(w -> Levenshtein.distance(query, w))
+                               .sorted().limit(7).toArray();
+      double[] actual = new double[buffer.size()];
+      for (int i = 0; i < buffer.size(); i++) {
+        actual[i] = buffer.distance(i);
+        assertEquals(actual[i], Levenshtein.distance(query, tree.get(buffer.index(i))), 0);
+      }
+      assertArrayEquals(expected, actual, 0);
+    }
+  }
+
   @Test
   public void radiusQuery() {
     Random rnd = new Random(0xfeefee);
@@ -212,4 +675,185 @@ public class TestVPTree extends BaseTestSpatialTree {
           .collect(Collectors.toList())
     );
   }
+
+  @Test
+  public void attributeFilter() {
+    AtomicInteger calls = new AtomicInteger();
+    Metric<String> counting = (a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    };
+    // Category: length mod 8. Key: first character.
+    AttributeFilter filter = AttributeFilter.categories(1L << 3 | 1L << 5).withKeyRange('a', 'm');
+    Predicate<String> matches = w -> (w.length() % 8 == 3 || w.length() % 8 == 5)
+      && w.charAt(0) >= 'a' && w.charAt(0) <= 'm';
+
+    for (int bucketSize : new int[]{1, 4}) {
+      VPTree<String> tree = VPTree.builder(counting).seed(bucketSize).bucketSize(bucketSize)
+                                  .categories(w -> 1L << (w.length() % 8))
+                                  .key(w -> w.charAt(0)).build(WORDS);
+      long filtered = 0;
+      long unfiltered = 0;
+      for (String query : QUERY_WORDS) {
+        double[] expected = WORDS.stream().filter(matches).mapToDouble(w -> Levenshtein.distance(query, w))
+                                 .sorted().limit(5).toArray();
+        calls.set(0);
+        List<VPTree.Entry<String>> found = tree.nearestNeighbors(5, Double.POSITIVE_INFINITY, query, filter,
+          w -> true).collect(Collectors.toList());
+        filtered += calls.get();
+        assertArrayEquals(expected, found.stream().mapToDouble(e -> e.distance).toArray(), 0);
+        assertTrue(found.stream().allMatch(e -> matches.test(e.point)));
+
+        calls.set(0);
+        tree.nearestNeighbors(5, Double.POSITIVE_INFINITY, query, matches).count();
+        unfiltered += calls.get();
+
+        assertEquals(WORDS.stream().filter(matches).filter(w -> w.length() > 6)
+                          .filter(w -> Levenshtein.distance(query, w) <= 3).count(),
+          tree.nearestNeighbors(Integer.MAX_VALUE, 3, query, filter, w -> w.length() > 6).count());
+        assertEquals(WORDS.stream().filter(w -> w.length() % 8 == 2)
+                          .filter(w -> Levenshtein.distance(query, w) <= 4).count(),
+          tree.withinRadius(query, 4, AttributeFilter.category(2)).count());
+        assertEquals(tree.withinRadius(query, 2).count(), tree.withinRadius(query, 2, AttributeFilter.ALL).count());
+      }
+      assertTrue(filtered < unfiltered);
+    }
+  }
+
+  @Test
+  public void attributeFilterNoCategories() {
+    // Short words have no categories.
+    VPTree<String> tree = VPTree.builder((Metric<String>) Levenshtein::distance).seed(3).bucketSize(4)
+                                .categories(w -> w.length() < 6 ? 0L : 1L << (w.length() % 8))
+                                .key(String::length).build(WORDS);
+    for (String query : QUERY_WORDS) {
+      assertEquals(tree.withinRadius(query, 3).count(), tree.withinRadius(query, 3, AttributeFilter.ALL).count());
+      assertEquals(WORDS.stream().filter(w -> w.length() <= 7)
+                        .filter(w -> Levenshtein.distance(query, w) <= 3).count(),
+        tree.withinRadius(query, 3, AttributeFilter.keyRange(0, 7)).count());
+      assertEquals(WORDS.stream().filter(w -> w.length() >= 6 && w.length() % 8 == 6)
+                        .filter(w -> Levenshtein.distance(query, w) <= 3).count(),
+        tree.withinRadius(query, 3, AttributeFilter.category(6)).count());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void attributeFilterWithoutAttributes() {
+    VPTree<String> tree = VPTree.builder((Metric<String>) Levenshtein::distance).key(String::length).build(WORDS);
+    tree.withinRadius("foo", 2, AttributeFilter.category(1));
+  }
+
+  @Test
+  public void lazyWithinRadius() {
+    AtomicInteger calls = new AtomicInteger();
+    Metric<String> counting = (a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    };
+    for (int bucketSize : new int[]{1, 4}) {
+      VPTree<String> tree = new VPTree<>(counting, WORDS, new SplittableRandom(24), bucketSize);
+      long full = 0;
+      long first = 0;
+      for (String query : QUERY_WORDS) {
+        Set<String> expected = WORDS.stream().filter(w -> Levenshtein.distance(query, w) <= 4)
+                                    .collect(Collectors.toSet());
+
+        calls.set(0);
+        List<VPTree.Entry<String>> all = tree.withinRadius(query, 4).collect(Collectors.toList());
+        full += calls.get();
+        assertEquals(expected.size(), all.size());
+        assertEquals(expected, all.stream().map(e -> e.point).collect(Collectors.toSet()));
+        assertTrue(all.stream().allMatch(e -> e.distance == Levenshtein.distance(query, e.point)));
+
+        assertEquals(expected, tree.withinRadius(query, 4).parallel().map(e -> e.point)
+                                   .collect(Collectors.toSet()));
+        assertEquals(expected.stream().filter(w -> w.length() > 5).collect(Collectors.toSet()),
+          tree.withinRadius(query, 4, w -> w.length() > 5).parallel().map(e -> e.point)
+              .collect(Collectors.toSet()));
+
+        // The query point itself is in the tree, so there is a first match.
+        calls.set(0);
+        assertTrue(tree.withinRadius(query, 4).findFirst().isPresent());
+        first += calls.get();
+      }
+      assertTrue(first < full / 2);
+    }
+  }
+
+  @Test
+  public void splitWithinRadius() {
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS, new SplittableRandom(25));
+    Spliterator<VPTree.Entry<String>> spliterator = tree.withinRadius("static", 100).spliterator();
+    List<Spliterator<VPTree.Entry<String>>> parts = new ArrayList<>();
+    parts.add(spliterator);
+    for (int i = 0; i < parts.size() && parts.size() < 16; i++) {
+      Spliterator<VPTree.Entry<String>> split;
+      while ((split = parts.get(i).trySplit()) != null && parts.size() < 16) {
+        parts.add(split);
+      }
+    }
+    assertTrue(parts.size() > 1);
+    List<String> points = new ArrayList<>();
+    for (Spliterator<VPTree.Entry<String>> part : parts) {
+      part.forEachRemaining(e -> points.add(e.point));
+    }
+    Collections.sort(points);
+    List<String> expected = new ArrayList<>(WORDS);
+    Collections.sort(expected);
+    assertEquals(expected, points);
+  }
+
+  @Test
+  public void farthestNeighbors() {
+    AtomicInteger calls = new AtomicInteger();
+    Metric<String> counting = (a, b) -> {
+      calls.incrementAndGet();
+      return Levenshtein.distance(a, b);
+    };
+    for (int bucketSize : new int[]{1, 4}) {
+      VPTree<String> tree = new VPTree<>(counting, WORDS, new SplittableRandom(26), bucketSize);
+      calls.set(0);
+      for (String query : QUERY_WORDS) {
+        double[] expected = WORDS.stream().mapToDouble(w -> -Levenshtein.distance(query, w))
+                                 .sorted().limit(5).map(d -> -d).toArray();
+        List<VPTree.Entry<String>> found = tree.farthestNeighbors(5, query).collect(Collectors.toList());
+        assertArrayEquals(expected, found.stream().mapToDouble(e -> e.distance).toArray(), 0);
+        assertTrue(found.stream().allMatch(e -> e.distance == Levenshtein.distance(query, e.point)));
+      }
+      assertTrue(calls.get() < QUERY_WORDS.size() * WORDS.size());
+    }
+    VPTree<String> tree = new VPTree<>(Levenshtein::distance, WORDS.subList(0, 3));
+    assertEquals(3, tree.farthestNeighbors(10, "foo").count());
+    assertEquals(0, tree.farthestNeighbors(0, "foo").count());
+  }
+
+  @Test
+  public void reverseNearestNeighbors() {
+    List<String> points = WORDS.subList(0, 800);
+    for (int bucketSize : new int[]{1, 4}) {
+      VPTree<String> tree = new VPTree<>(Levenshtein::distance, points, new SplittableRandom(27), bucketSize);
+      for (int k : new int[]{1, 3}) {
+        // Distance from each point to its k'th nearest other point.
+        double[] radius = new double[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+          String p = points.get(i);
+          int self = i;
+          radius[i] = range(0, points.size()).filter(j -> j != self)
+                                             .mapToDouble(j -> Levenshtein.distance(p, points.get(j)))
+                                             .sorted().skip(k - 1).findFirst().getAsDouble();
+        }
+        for (String query : QUERY_WORDS.subList(0, 20)) {
+          List<String> expected = range(0, points.size())
+            .filter(i -> Levenshtein.distance(query, points.get(i)) <= radius[i])
+            .mapToObj(points::get).sorted().collect(Collectors.toList());
+          List<String> found = tree.reverseNearestNeighbors(k, query).map(e -> e.point).sorted()
+                                   .collect(Collectors.toList());
+          assertEquals(expected, found);
+        }
+      }
+    }
+
+    VPTree<String> small = new VPTree<>(Levenshtein::distance, asList("a", "b"));
+    assertEquals(2, small.reverseNearestNeighbors(5, "zzz").count());
+  }
 }
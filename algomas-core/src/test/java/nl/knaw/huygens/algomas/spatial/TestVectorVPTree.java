@@ -0,0 +1,147 @@
+package nl.knaw.huygens.algomas.spatial;
+
+/*
+ * #%L
+ * algomas-core
+ * %%
+ * Copyright (C) 2016 Huygens ING (KNAW)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestVectorVPTree {
+  private static double[][] randomPoints(Random rnd, int n, int dim) {
+    double[][] points = new double[n][dim];
+    for (double[] p : points) {
+      for (int j = 0; j < dim; j++) {
+        // Round, to get some duplicate distances.
+        p[j] = Math.round(rnd.nextGaussian() * 4) / 4.;
+      }
+    }
+    return points;
+  }
+
+  @Test
+  public void metrics() {
+    double[] a = {1, 2, 3};
+    double[] b = {4, 6, 3};
+    assertEquals(5, VectorMetric.EUCLIDEAN.distance(a, b), 1e-12);
+    assertEquals(7, VectorMetric.MANHATTAN.distance(a, b), 1e-12);
+    assertEquals(4, VectorMetric.CHEBYSHEV.distance(a, b), 1e-12);
+    assertEquals(0, VectorMetric.ANGULAR.distance(a, new double[]{2, 4, 6}), 1e-7);
+    assertEquals(1, VectorMetric.ANGULAR.distance(a, new double[]{-1, -2, -3}), 1e-7);
+    assertEquals(.5, VectorMetric.ANGULAR.distance(new double[]{1, 0}, new double[]{0, 3}), 1e-12);
+
+    // Early exit gives a value above the threshold.
+    double[] zero = new double[100];
+    double[] ones = new double[100];
+    Arrays.fill(ones, 1);
+    for (VectorMetric m : VectorMetric.values()) {
+      double d = m.distance(zero, 0, ones, 0, 100, 1e-3);
+      if (m != VectorMetric.ANGULAR) {
+        assertTrue(d > 1e-3);
+        assertTrue(d <= m.distance(zero, ones));
+      }
+    }
+  }
+
+  @Test
+  public void nearestNeighbors() {
+    Random rnd = new Random(0x7ec);
+    for (int dim : new int[]{1, 3, 40}) {
+      double[][] points = randomPoints(rnd, 1500, dim);
+      double[][] queries = randomPoints(rnd, 25, dim);
+      for (VectorMetric metric : VectorMetric.values()) {
+        VectorVPTree tree = new VectorVPTree(metric, points, new SplittableRandom(dim));
+        assertEquals(points.length, tree.size());
+        assertEquals(dim, tree.dimension());
+        NeighborBuffer result = new NeighborBuffer();
+
+        for (double[] q : queries) {
+          double[] expected = Arrays.stream(points).mapToDouble(p -> metric.distance(q, p))
+                                    .sorted().limit(7).toArray();
+          tree.nearestNeighbors(7, q, result);
+          assertEquals(7, result.size());
+          for (int i = 0; i < 7; i++) {
+            assertEquals(expected[i], result.distance(i), 1e-9);
+            assertEquals(result.distance(i), metric.distance(q, tree.get(result.index(i))), 1e-9);
+          }
+
+          double radius = expected[6];
+          long within = Arrays.stream(points).filter(p -> metric.distance(q, p) <= radius).count();
+          tree.withinRadius(q, radius, result);
+          assertEquals(within, result.size());
+
+          tree.nearestNeighbors(5, Double.POSITIVE_INFINITY, q, id -> id % 2 == 0, result);
+          double[] even = IntStream.range(0, points.length).filter(i -> i % 2 == 0)
+                                   .mapToDouble(i -> metric.distance(q, points[i]))
+                                   .sorted().limit(5).toArray();
+          for (int i = 0; i < 5; i++) {
+            assertEquals(0, result.index(i) % 2);
+            assertEquals(even[i], result.distance(i), 1e-9);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void slab() {
+    double[][] points = randomPoints(new Random(5), 100, 4);
+    double[] flat = new double[400];
+    for (int i = 0; i < 100; i++) {
+      System.arraycopy(points[i], 0, flat, 4 * i, 4);
+    }
+    VectorVPTree tree = new VectorVPTree(VectorMetric.EUCLIDEAN, flat, 4, new SplittableRandom(1));
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(points[i], tree.get(i), 0);
+    }
+    NeighborBuffer result = new NeighborBuffer();
+    tree.nearestNeighbors(1, points[42], result);
+    assertEquals(0, result.distance(0), 0);
+  }
+
+  @Test
+  public void empty() {
+    VectorVPTree tree = new VectorVPTree(VectorMetric.MANHATTAN, new double[0][]);
+    NeighborBuffer result = new NeighborBuffer();
+    tree.nearestNeighbors(3, new double[]{1, 2}, result);
+    assertEquals(0, result.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wrongDimension() {
+    VectorVPTree tree = new VectorVPTree(VectorMetric.EUCLIDEAN, new double[][]{{1, 2}, {3, 4}});
+    tree.nearestNeighbors(1, new double[]{1, 2, 3}, new NeighborBuffer());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ragged() {
+    new VectorVPTree(VectorMetric.EUCLIDEAN, new double[][]{{1, 2}, {3}});
+  }
+}